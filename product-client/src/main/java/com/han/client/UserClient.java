@@ -0,0 +1,263 @@
+package com.han.client;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.han.client.dto.UserDTO;
+import com.han.common.batch.RequestBatcher;
+import feign.Response;
+import feign.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 用户服务客户端
+ * 1、本地缓存：最多缓存MAX_CACHE_SIZE个用户，FRESH_MILLIS内直接返回，过期后通过单条查询接口重新校验，
+ * 第一次校验时记录响应的ETag，之后携带ETag校验，未变化时返回304不传输响应体
+ * 2、合并请求：多个线程在BATCH_WINDOW_MILLIS内的单条查询合并为一次批量查询
+ */
+public class UserClient implements AutoCloseable {
+    //缓存新鲜时间（毫秒），与服务端缓存时间一致
+    private static final long FRESH_MILLIS = 5000;
+    //过期数据保留时间（毫秒），用于ETag重新校验
+    private static final long STALE_MILLIS = 60000;
+    private static final long MAX_CACHE_SIZE = 10000;
+    //合并请求的时间窗口（毫秒）
+    private static final long BATCH_WINDOW_MILLIS = 5;
+    //单次批量查询最多的用户数，与服务端限制一致
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long LOAD_TIMEOUT_MILLIS = 3000;
+    private static final int NOT_MODIFIED = 304;
+    private static final int OK = 200;
+
+    private final UserFeignClient userFeignClient;
+    //当前时间（毫秒）
+    private final LongSupplier clock;
+    private final Cache<Integer, CachedUser> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHE_SIZE)
+            .expireAfterWrite(STALE_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+    //正在重新校验的用户，同一用户只发送一次校验请求
+    private final Map<Integer, CompletableFuture<UserDTO>> revalidating = new ConcurrentHashMap<>();
+    private final RequestBatcher<Integer, UserDTO> userBatcher = new RequestBatcher<>("user-client-batch-loader",
+            Integer.MAX_VALUE, MAX_BATCH_SIZE, BATCH_WINDOW_MILLIS,
+            batch -> RequestBatcher.completeByKey(batch, this::fetchGroupById));
+
+    public UserClient(UserFeignClient userFeignClient) {
+        this(userFeignClient, System::currentTimeMillis);
+    }
+
+    UserClient(UserFeignClient userFeignClient, LongSupplier clock) {
+        this.userFeignClient = userFeignClient;
+        this.clock = clock;
+        this.userBatcher.start();
+    }
+
+    /**
+     * 查询单个用户，不存在时返回null
+     *
+     * @param userId
+     * @return
+     */
+    public UserDTO findUserById(Integer userId) {
+        if (null == userId) {
+            return null;
+        }
+        final CachedUser cached = cache.getIfPresent(userId);
+        if (null != cached) {
+            if (cached.isFresh(clock.getAsLong())) {
+                return cached.user;
+            }
+            return revalidate(userId, cached);
+        }
+        return loadBatched(userId);
+    }
+
+    /**
+     * 批量查询用户，返回userId到用户的映射，不存在的用户不返回
+     *
+     * @param userIds
+     * @return
+     */
+    public Map<Integer, UserDTO> findUsersByIds(Collection<Integer> userIds) {
+        final Map<Integer, UserDTO> users = new LinkedHashMap<>();
+        if (null == userIds || userIds.isEmpty()) {
+            return users;
+        }
+        final List<Integer> misses = new ArrayList<>();
+        for (Integer userId : new LinkedHashSet<>(userIds)) {
+            final CachedUser cached = null == userId ? null : cache.getIfPresent(userId);
+            if (null != cached && cached.isFresh(clock.getAsLong())) {
+                users.put(userId, cached.user);
+            } else if (null != userId) {
+                misses.add(userId);
+            }
+        }
+        for (List<Integer> partition : Lists.partition(misses, MAX_BATCH_SIZE)) {
+            for (UserDTO user : fetchBatch(partition)) {
+                users.put(user.getUserId(), user);
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public void close() {
+        userBatcher.close();
+    }
+
+    /**
+     * 通过单条查询接口重新校验过期的缓存，有ETag时携带If-None-Match，未变化时只刷新缓存时间
+     * 批量接口没有ETag，缓存中没有ETag时第一次校验返回完整数据并记录ETag
+     */
+    private UserDTO revalidate(Integer userId, CachedUser cached) {
+        final CompletableFuture<UserDTO> future = new CompletableFuture<>();
+        final CompletableFuture<UserDTO> inFlight = revalidating.putIfAbsent(userId, future);
+        if (null != inFlight) {
+            return await(userId, inFlight);
+        }
+        try (Response response = userFeignClient.findUserById(userId, cached.eTag)) {
+            final UserDTO user;
+            if (response.status() == NOT_MODIFIED) {
+                cacheUser(cached.user, cached.eTag);
+                user = cached.user;
+            } else {
+                final JSONObject data = (JSONObject) readData(response);
+                user = null == data ? null : JSONObject.toJavaObject(data, UserDTO.class);
+                if (null == user) {
+                    cache.invalidate(userId);
+                } else {
+                    cacheUser(user, header(response, "ETag"));
+                }
+            }
+            future.complete(user);
+            return user;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw new IllegalStateException("重新校验用户【" + userId + "】信息失败", e);
+        } finally {
+            revalidating.remove(userId, future);
+        }
+    }
+
+    private UserDTO loadBatched(Integer userId) {
+        final RequestBatcher.Request<Integer, UserDTO> request = userBatcher.submit(userId);
+        if (null == request) {
+            return findUsersByIds(Lists.newArrayList(userId)).get(userId);
+        }
+        try {
+            return request.get(LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("查询用户【" + userId + "】信息被中断", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("查询用户【" + userId + "】信息失败", e);
+        }
+    }
+
+    private UserDTO await(Integer userId, CompletableFuture<UserDTO> future) {
+        try {
+            return future.get(LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("查询用户【" + userId + "】信息被中断", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("查询用户【" + userId + "】信息失败", e);
+        }
+    }
+
+    private Map<Integer, UserDTO> fetchGroupById(Set<Integer> userIds) {
+        final Map<Integer, UserDTO> users = new HashMap<>();
+        for (UserDTO user : fetchBatch(new ArrayList<>(userIds))) {
+            users.put(user.getUserId(), user);
+        }
+        return users;
+    }
+
+    private List<UserDTO> fetchBatch(List<Integer> userIds) {
+        try (Response response = userFeignClient.findUsersByIds(userIds)) {
+            final JSONArray data = (JSONArray) readData(response);
+            final List<UserDTO> users = new ArrayList<>();
+            if (null != data) {
+                for (int i = 0; i < data.size(); i++) {
+                    final UserDTO user = JSONObject.toJavaObject(data.getJSONObject(i), UserDTO.class);
+                    cacheUser(user, null);
+                    users.add(user);
+                }
+            }
+            return users;
+        } catch (IOException e) {
+            throw new IllegalStateException("批量查询用户信息失败", e);
+        }
+    }
+
+    private void cacheUser(UserDTO user, String eTag) {
+        if (null != user && null != user.getUserId()) {
+            cache.put(user.getUserId(), new CachedUser(user, eTag, clock.getAsLong() + FRESH_MILLIS));
+        }
+    }
+
+    /**
+     * 解析服务端返回的Result，返回data字段
+     * 接口返回原始响应，feign不会解压，Content-Encoding为gzip时在这里解压
+     */
+    private static Object readData(Response response) throws IOException {
+        if (response.status() != OK || null == response.body()) {
+            throw new IllegalStateException("用户服务响应异常，状态码【" + response.status() + "】");
+        }
+        InputStream inputStream = response.body().asInputStream();
+        if ("gzip".equalsIgnoreCase(header(response, "Content-Encoding"))) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        final byte[] body = Util.toByteArray(inputStream);
+        final JSONObject result = JSON.parseObject(new String(body, StandardCharsets.UTF_8));
+        final Integer code = result.getInteger("code");
+        if (null == code || code != 0) {
+            throw new IllegalStateException("用户服务返回失败【" + result.getString("msg") + "】");
+        }
+        return result.get("data");
+    }
+
+    private static String header(Response response, String name) {
+        for (Map.Entry<String, Collection<String>> entry : response.headers().entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().iterator().next();
+            }
+        }
+        return null;
+    }
+
+    private static class CachedUser {
+        private final UserDTO user;
+        private final String eTag;
+        private final long freshUntil;
+
+        private CachedUser(UserDTO user, String eTag, long freshUntil) {
+            this.user = user;
+            this.eTag = eTag;
+            this.freshUntil = freshUntil;
+        }
+
+        private boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.han.client;
+
+import feign.Response;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import java.util.Collection;
+
+/**
+ * 用户服务接口（返回原始响应，由{@link UserClient}处理304、gzip解压及结果解析）
+ * 请求携带Accept-Encoding: gzip，响应体超过服务端server.compression.min-response-size时压缩传输
+ */
+@FeignClient(name = "product", contextId = "userFeignClient")
+public interface UserFeignClient {
+
+    @GetMapping(value = "/findUserById", headers = "Accept-Encoding=gzip")
+    Response findUserById(@RequestParam("userId") Integer userId,
+                          @RequestHeader(value = "If-None-Match", required = false) String eTag);
+
+    @GetMapping(value = "/findUsersByIds", headers = "Accept-Encoding=gzip")
+    Response findUsersByIds(@RequestParam("userIds") Collection<Integer> userIds);
+}
@@ -0,0 +1,33 @@
+package com.han.client.config;
+
+import com.han.client.UserClient;
+import com.han.client.UserFeignClient;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 引入product-client即可注入{@link UserClient}
+ * feign-httpclient在classpath中时默认使用Apache HttpClient连接池（keep-alive）
+ * Spring Cloud创建的HttpClient关闭了自动解压，gzip响应由{@link UserClient}解压
+ */
+@Configuration
+public class UserClientAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public UserClient userClient(UserFeignClient userFeignClient) {
+        return new UserClient(userFeignClient);
+    }
+
+    /**
+     * 使用方的@EnableFeignClients已经扫描到com.han.client时不再重复注册UserFeignClient（重复注册时启动失败）
+     * feign客户端的bean定义是FactoryBean，注册时不能按类型判断，按注册使用的bean名称（接口全类名）判断
+     */
+    @Configuration
+    @ConditionalOnMissingBean(name = "com.han.client.UserFeignClient")
+    @EnableFeignClients(clients = UserFeignClient.class)
+    static class UserFeignClientRegistration {
+    }
+}
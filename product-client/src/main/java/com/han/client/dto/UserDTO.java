@@ -0,0 +1,40 @@
+package com.han.client.dto;
+
+public class UserDTO {
+    private Integer userId;
+    private String userName;
+    private String password;
+
+    public UserDTO() {
+    }
+
+    public UserDTO(Integer userId, String userName, String password) {
+        this.userId = userId;
+        this.userName = userName;
+        this.password = password;
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Integer userId) {
+        this.userId = userId;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+}
@@ -0,0 +1,146 @@
+package com.han.client;
+
+import com.han.client.dto.UserDTO;
+import feign.MethodMetadata;
+import feign.Request;
+import feign.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cloud.openfeign.support.SpringMvcContract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class UserClientTest {
+    private static final String ETAG = "\"0a1b2c\"";
+    private static final String USER_JSON = "{\"code\":0,\"msg\":\"成功\",\"data\":{\"userId\":1,\"userName\":\"han\"}}";
+    private static final String USERS_JSON = "{\"code\":0,\"msg\":\"成功\",\"data\":[{\"userId\":1,\"userName\":\"han\"}]}";
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final FakeUserFeignClient feignClient = new FakeUserFeignClient();
+    private UserClient userClient;
+
+    @Before
+    public void setUp() {
+        userClient = new UserClient(feignClient, now::get);
+    }
+
+    @After
+    public void tearDown() {
+        userClient.close();
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedWithETag() {
+        //第一次查询走批量接口
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        assertEquals(1, feignClient.batchCalls.size());
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        assertEquals(0, feignClient.eTagsSent.size());
+
+        //过期后第一次校验没有ETag，返回完整数据并记录ETag
+        now.addAndGet(6000);
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        assertEquals(Collections.singletonList("none"), feignClient.eTagsSent);
+
+        //再次过期后携带ETag校验，304时返回缓存的数据
+        now.addAndGet(6000);
+        final UserDTO user = userClient.findUserById(1);
+        assertEquals("han", user.getUserName());
+        assertEquals(ETAG, feignClient.eTagsSent.get(1));
+        assertEquals(1, feignClient.notModified);
+
+        //304刷新了缓存时间，新鲜期内不再请求
+        now.addAndGet(1000);
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        assertEquals(2, feignClient.eTagsSent.size());
+        assertEquals(1, feignClient.batchCalls.size());
+    }
+
+    @Test
+    public void gzipResponseIsDecompressed() {
+        feignClient.gzip = true;
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        now.addAndGet(6000);
+        assertEquals("han", userClient.findUserById(1).getUserName());
+        assertEquals(Collections.singletonList("none"), feignClient.eTagsSent);
+    }
+
+    @Test
+    public void requestsAcceptGzip() {
+        for (MethodMetadata metadata : new SpringMvcContract().parseAndValidatateMetadata(UserFeignClient.class)) {
+            assertEquals(metadata.configKey(), Collections.singletonList("gzip"),
+                    new ArrayList<>(metadata.template().headers().get("Accept-Encoding")));
+        }
+    }
+
+    private static Response response(int status, String body, Map<String, Collection<String>> headers) {
+        final Response.Builder builder = Response.builder()
+                .status(status)
+                .reason(status == 304 ? "Not Modified" : "OK")
+                .headers(headers)
+                .request(Request.create(Request.HttpMethod.GET, "/", Collections.emptyMap(), null, StandardCharsets.UTF_8));
+        return null == body ? builder.build() : builder.body(body, StandardCharsets.UTF_8).build();
+    }
+
+    private static Response gzipResponse(String body, Map<String, Collection<String>> headers) {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(compressed)) {
+            outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Response.builder()
+                .status(200)
+                .reason("OK")
+                .headers(headers)
+                .request(Request.create(Request.HttpMethod.GET, "/", Collections.emptyMap(), null, StandardCharsets.UTF_8))
+                .body(compressed.toByteArray())
+                .build();
+    }
+
+    private static class FakeUserFeignClient implements UserFeignClient {
+        private final List<Collection<Integer>> batchCalls = new CopyOnWriteArrayList<>();
+        private final List<String> eTagsSent = new CopyOnWriteArrayList<>();
+        private int notModified;
+        private boolean gzip;
+
+        @Override
+        public Response findUserById(Integer userId, String eTag) {
+            eTagsSent.add(null == eTag ? "none" : eTag);
+            if (ETAG.equals(eTag)) {
+                notModified++;
+                return response(304, null, Collections.singletonMap("ETag", Collections.singletonList(ETAG)));
+            }
+            if (gzip) {
+                final Map<String, Collection<String>> headers = new HashMap<>();
+                headers.put("ETag", Collections.singletonList(ETAG));
+                headers.put("Content-Encoding", Collections.singletonList("gzip"));
+                return gzipResponse(USER_JSON, headers);
+            }
+            return response(200, USER_JSON, Collections.singletonMap("ETag", Collections.singletonList(ETAG)));
+        }
+
+        @Override
+        public Response findUsersByIds(Collection<Integer> userIds) {
+            batchCalls.add(userIds);
+            if (gzip) {
+                return gzipResponse(USERS_JSON, Collections.singletonMap("Content-Encoding", Collections.singletonList("gzip")));
+            }
+            return response(200, USERS_JSON, Collections.emptyMap());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.han.client.config;
+
+import com.han.client.UserClient;
+import com.han.client.UserFeignClient;
+import feign.Client;
+import org.junit.Test;
+import org.springframework.cloud.commons.httpclient.HttpClientConfiguration;
+import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.cloud.openfeign.FeignAutoConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 使用方自己的@EnableFeignClients是否扫描到com.han.client，UserFeignClient都只注册一次
+ * 自动配置在使用方的配置之后处理，这里按相同的顺序注册
+ */
+public class UserClientAutoConfigurationTest {
+
+    @Test
+    public void registersFeignClientWhenConsumerDoesNotScanIt() {
+        try (AnnotationConfigApplicationContext context = start(ConsumerConfiguration.class)) {
+            assertEquals(1, context.getBeanNamesForType(UserFeignClient.class).length);
+            assertNotNull(context.getBean(UserClient.class));
+        }
+    }
+
+    @Test
+    public void skipsFeignClientWhenConsumerScansIt() {
+        try (AnnotationConfigApplicationContext context = start(ScanningConsumerConfiguration.class)) {
+            assertEquals(1, context.getBeanNamesForType(UserFeignClient.class).length);
+            assertNotNull(context.getBean(UserClient.class));
+        }
+    }
+
+    /**
+     * 与spring boot一样不允许覆盖bean定义，重复注册时启动失败
+     */
+    private static AnnotationConfigApplicationContext start(Class<?> consumerConfiguration) {
+        final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getDefaultListableBeanFactory().setAllowBeanDefinitionOverriding(false);
+        context.register(consumerConfiguration, HttpClientConfiguration.class, FeignAutoConfiguration.class,
+                UserClientAutoConfiguration.class);
+        context.refresh();
+        return context;
+    }
+
+    @Configuration
+    static class ConsumerConfiguration {
+
+        //不发送请求，只用于创建feign客户端
+        @Bean
+        public Client feignClient() {
+            return (request, options) -> {
+                throw new UnsupportedOperationException();
+            };
+        }
+    }
+
+    @Configuration
+    @EnableFeignClients(basePackages = "com.han")
+    static class ScanningConsumerConfiguration extends ConsumerConfiguration {
+    }
+}
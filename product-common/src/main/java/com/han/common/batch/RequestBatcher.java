@@ -0,0 +1,215 @@
+package com.han.common.batch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 合并请求：调用线程提交请求后等待结果，合并线程收集请求后每批调用一次处理函数
+ * 1、windowMillis大于0时，收到第一个请求后最多等待windowMillis，凑满maxBatchSize立即处理
+ * 2、windowMillis为0时不额外等待，取出队列中所有等待的请求，上一批处理期间到达的请求组成下一批
+ * 处理函数负责完成每个请求，处理函数抛出异常或漏掉的请求以失败结束；合并线程停止时队列中的请求也以失败结束
+ *
+ * @param <T> 请求参数
+ * @param <R> 请求结果
+ */
+public final class RequestBatcher<T, R> implements AutoCloseable {
+    private final String name;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final Consumer<List<Request<T, R>>> handler;
+    private final BlockingQueue<Request<T, R>> pendingRequests;
+    private volatile boolean running;
+    private Thread batchThread;
+
+    /**
+     * @param name         合并线程名
+     * @param capacity     最多等待的请求数，超过时{@link #submit}返回null
+     * @param maxBatchSize 每批最多的请求数
+     * @param windowMillis 合并请求的时间窗口（毫秒）
+     * @param handler      处理一批请求
+     */
+    public RequestBatcher(String name, int capacity, int maxBatchSize, long windowMillis, Consumer<List<Request<T, R>>> handler) {
+        if (capacity <= 0 || maxBatchSize <= 0 || windowMillis < 0) {
+            throw new IllegalArgumentException("合并请求参数错误：capacity【" + capacity + "】maxBatchSize【" + maxBatchSize + "】windowMillis【" + windowMillis + "】");
+        }
+        this.name = name;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.handler = handler;
+        this.pendingRequests = new LinkedBlockingQueue<>(capacity);
+    }
+
+    /**
+     * 启动合并线程
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        batchThread = new Thread(this::runBatches, name);
+        batchThread.setDaemon(true);
+        batchThread.start();
+    }
+
+    /**
+     * 停止合并线程，未处理的请求以失败结束
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (null != batchThread) {
+            batchThread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 提交请求
+     *
+     * @param item
+     * @return 合并线程已停止或等待的请求已满时返回null，由调用方自行处理
+     */
+    public Request<T, R> submit(T item) {
+        if (!running) {
+            return null;
+        }
+        final Request<T, R> request = new Request<>(item);
+        return pendingRequests.offer(request) ? request : null;
+    }
+
+    /**
+     * 按key去重后调用一次查询函数，相同key的请求共享一条结果，查询结果中没有的key返回null
+     *
+     * @param batch
+     * @param loader 参数为去重后的key，返回key到结果的映射
+     */
+    public static <K, V> void completeByKey(List<Request<K, V>> batch, Function<Set<K>, Map<K, V>> loader) {
+        final Map<K, List<Request<K, V>>> waiters = new LinkedHashMap<>();
+        for (Request<K, V> request : batch) {
+            waiters.computeIfAbsent(request.getItem(), k -> new ArrayList<>()).add(request);
+        }
+        final Map<K, V> results = loader.apply(waiters.keySet());
+        waiters.forEach((key, requests) -> {
+            final V result = results.get(key);
+            requests.forEach(request -> request.complete(result));
+        });
+    }
+
+    private void runBatches() {
+        final List<Request<T, R>> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running) {
+                batch.add(pendingRequests.take());
+                if (windowNanos == 0) {
+                    pendingRequests.drainTo(batch, maxBatchSize - 1);
+                } else {
+                    final long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maxBatchSize) {
+                        final long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        final Request<T, R> next = pendingRequests.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (null == next) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                dispatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pendingRequests.drainTo(batch);
+            final IllegalStateException stopped = new IllegalStateException("合并线程【" + name + "】已停止");
+            batch.forEach(request -> request.fail(stopped));
+        }
+    }
+
+    private void dispatch(List<Request<T, R>> batch) {
+        //调用方已经撤回的请求不再处理
+        batch.removeIf(request -> !request.markDispatched());
+        if (batch.isEmpty()) {
+            return;
+        }
+        Throwable failure = null;
+        try {
+            handler.accept(batch);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        final Throwable cause = null == failure ? new IllegalStateException("合并线程【" + name + "】未返回结果") : failure;
+        batch.forEach(request -> request.fail(cause));
+    }
+
+    /**
+     * 一个等待合并处理的请求
+     */
+    public static final class Request<T, R> {
+        private static final int PENDING = 0;
+        private static final int DISPATCHED = 1;
+        private static final int CANCELLED = 2;
+
+        private final T item;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Request(T item) {
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public void complete(R result) {
+            future.complete(result);
+        }
+
+        public void fail(Throwable e) {
+            future.completeExceptionally(e);
+        }
+
+        /**
+         * 等待结果
+         */
+        public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+
+        /**
+         * 撤回还没有交给处理函数的请求
+         *
+         * @return 已经在处理中或已完成时返回false，此时应继续等待结果
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                future.cancel(false);
+                return true;
+            }
+            return false;
+        }
+
+        private boolean markDispatched() {
+            return state.compareAndSet(PENDING, DISPATCHED);
+        }
+    }
+}
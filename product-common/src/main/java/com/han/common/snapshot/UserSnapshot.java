@@ -0,0 +1,92 @@
+package com.han.common.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 只读内存映射的用户快照，由{@link UserSnapshotWriter}生成
+ * 文件格式：
+ * 1、文件头：magic(int) + version(int) + 记录数(int)
+ * 2、索引：按userId升序排列的定长索引项，userId(int) + 记录偏移量(int) + 记录长度(int)
+ * 3、数据：紧密排列的记录内容，偏移量相对于数据区起始位置
+ * 打开时只映射文件不反序列化，数据在堆外，查询时二分查找索引并复制单条记录
+ * 单个文件不能超过2G
+ */
+public final class UserSnapshot {
+    static final int MAGIC = 0x55534E50;
+    //版本2的记录中不再包含密码，旧版本的快照文件加载失败后在启动完成时重新生成
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 12;
+    static final int INDEX_ENTRY_SIZE = 12;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int dataStart;
+
+    private UserSnapshot(MappedByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("不是用户快照文件");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("不支持的用户快照版本【" + buffer.getInt(4) + "】");
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.dataStart = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+        if (count < 0 || dataStart > buffer.capacity()) {
+            throw new IllegalArgumentException("用户快照文件已损坏");
+        }
+    }
+
+    /**
+     * 只读映射快照文件
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static UserSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("用户快照文件不能超过2G");
+            }
+            return new UserSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * 查询用户记录，不存在时返回null
+     *
+     * @param userId
+     * @return
+     */
+    public byte[] get(int userId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int entry = HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+            final int midUserId = buffer.getInt(entry);
+            if (midUserId < userId) {
+                low = mid + 1;
+            } else if (midUserId > userId) {
+                high = mid - 1;
+            } else {
+                final byte[] record = new byte[buffer.getInt(entry + 8)];
+                final ByteBuffer view = buffer.duplicate();
+                view.position(dataStart + buffer.getInt(entry + 4));
+                view.get(record);
+                return record;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return count;
+    }
+}
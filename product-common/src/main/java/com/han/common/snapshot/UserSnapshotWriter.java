@@ -0,0 +1,121 @@
+package com.han.common.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 生成{@link UserSnapshot}文件
+ * 记录必须按userId升序追加，记录内容先写入临时数据文件，提交时拼接文件头、索引和数据，再原子替换目标文件
+ * 临时文件由{@link Files#createTempFile}创建，POSIX文件系统上权限为0600，替换后的快照文件只有所有者可读写
+ */
+public final class UserSnapshotWriter implements Closeable {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path target;
+    private final Path dataFile;
+    private final OutputStream data;
+    private int[] userIds = new int[1024];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int count;
+    private long dataSize;
+    private boolean committed;
+
+    public UserSnapshotWriter(Path target) throws IOException {
+        this.target = target.toAbsolutePath();
+        Files.createDirectories(this.target.getParent());
+        this.dataFile = Files.createTempFile(this.target.getParent(), this.target.getFileName().toString(), ".data");
+        this.data = new BufferedOutputStream(Files.newOutputStream(dataFile), COPY_BUFFER_SIZE);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param userId  必须大于上一条记录的userId
+     * @param record
+     * @throws IOException
+     */
+    public void append(int userId, byte[] record) throws IOException {
+        if (count > 0 && userId <= userIds[count - 1]) {
+            throw new IllegalArgumentException("用户快照记录必须按userId升序追加，当前【" + userId + "】上一条【" + userIds[count - 1] + "】");
+        }
+        final long indexSize = (long) UserSnapshot.HEADER_SIZE + (long) (count + 1) * UserSnapshot.INDEX_ENTRY_SIZE;
+        if (indexSize + dataSize + record.length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("用户快照文件不能超过2G");
+        }
+        if (count == userIds.length) {
+            userIds = Arrays.copyOf(userIds, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        userIds[count] = userId;
+        offsets[count] = (int) dataSize;
+        lengths[count] = record.length;
+        count++;
+        data.write(record);
+        dataSize += record.length;
+    }
+
+    /**
+     * 生成快照文件并替换目标文件
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        data.close();
+        final Path tmpFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmpFile, StandardOpenOption.WRITE);
+                 FileChannel in = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                buffer.putInt(UserSnapshot.MAGIC).putInt(UserSnapshot.VERSION).putInt(count);
+                for (int i = 0; i < count; i++) {
+                    if (buffer.remaining() < UserSnapshot.INDEX_ENTRY_SIZE) {
+                        writeFully(out, buffer);
+                    }
+                    buffer.putInt(userIds[i]).putInt(offsets[i]).putInt(lengths[i]);
+                }
+                writeFully(out, buffer);
+                long position = 0;
+                while (position < dataSize) {
+                    position += in.transferTo(position, dataSize - position, out);
+                }
+                out.force(true);
+            }
+            Files.move(tmpFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        } finally {
+            Files.deleteIfExists(tmpFile);
+            Files.deleteIfExists(dataFile);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        if (!committed) {
+            Files.deleteIfExists(dataFile);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,120 @@
+package com.han.common.batch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestBatcherTest {
+    private RequestBatcher<Integer, String> batcher;
+
+    @After
+    public void tearDown() {
+        if (null != batcher) {
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void sameKeySharesOneLookup() throws Exception {
+        final List<Integer> lookups = new CopyOnWriteArrayList<>();
+        batcher = new RequestBatcher<>("test", 100, 100, 50, batch -> RequestBatcher.completeByKey(batch, keys -> {
+            lookups.add(keys.size());
+            final Map<Integer, String> results = new HashMap<>();
+            keys.stream().filter(key -> key != 2).forEach(key -> results.put(key, "v" + key));
+            return results;
+        }));
+        batcher.start();
+        final RequestBatcher.Request<Integer, String> first = batcher.submit(1);
+        final RequestBatcher.Request<Integer, String> second = batcher.submit(1);
+        final RequestBatcher.Request<Integer, String> missing = batcher.submit(2);
+        assertEquals("v1", first.get(1, TimeUnit.SECONDS));
+        assertEquals("v1", second.get(1, TimeUnit.SECONDS));
+        assertNull(missing.get(1, TimeUnit.SECONDS));
+        assertEquals(1, lookups.size());
+        assertEquals(2, (int) lookups.get(0));
+    }
+
+    @Test
+    public void cancelledRequestIsNotDispatched() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> dispatched = new CopyOnWriteArrayList<>();
+        batcher = new RequestBatcher<>("test", 100, 1, 0, batch -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batch.forEach(request -> {
+                dispatched.add(request.getItem());
+                request.complete("v" + request.getItem());
+            });
+        });
+        batcher.start();
+        final RequestBatcher.Request<Integer, String> inFlight = batcher.submit(1);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        final RequestBatcher.Request<Integer, String> queued = batcher.submit(2);
+        //已经在处理中的请求不能撤回，队列中的请求可以撤回
+        assertFalse(inFlight.cancel());
+        assertTrue(queued.cancel());
+        release.countDown();
+        assertEquals("v1", inFlight.get(1, TimeUnit.SECONDS));
+        final RequestBatcher.Request<Integer, String> next = batcher.submit(3);
+        assertEquals("v3", next.get(1, TimeUnit.SECONDS));
+        assertEquals(2, dispatched.size());
+        assertFalse(dispatched.contains(2));
+    }
+
+    @Test
+    public void handlerFailureFailsWholeBatch() throws Exception {
+        batcher = new RequestBatcher<>("test", 100, 100, 0, batch -> {
+            throw new IllegalStateException("boom");
+        });
+        batcher.start();
+        try {
+            batcher.submit(1).get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void submitReturnsNullWhenFullOrStopped() {
+        final CountDownLatch release = new CountDownLatch(1);
+        batcher = new RequestBatcher<>("test", 1, 1, 0, batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertNull(batcher.submit(1));
+        batcher.start();
+        int accepted = 0;
+        for (int i = 0; i < 3; i++) {
+            if (null != batcher.submit(i)) {
+                accepted++;
+            }
+        }
+        //一个在处理中，一个在队列中
+        assertTrue(accepted >= 1 && accepted <= 2);
+        release.countDown();
+        batcher.close();
+        assertNull(batcher.submit(1));
+    }
+}
@@ -0,0 +1,156 @@
+package com.han.common.snapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserSnapshotTest {
+    private Path dir;
+    private Path snapshotFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("user-snapshot");
+        snapshotFile = dir.resolve("user.snapshot");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void emptySnapshot() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.commit();
+        }
+        final UserSnapshot snapshot = UserSnapshot.open(snapshotFile);
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.get(1));
+    }
+
+    @Test
+    public void singleRecord() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(7, bytes("han"));
+            writer.commit();
+        }
+        final UserSnapshot snapshot = UserSnapshot.open(snapshotFile);
+        assertEquals(1, snapshot.size());
+        assertArrayEquals(bytes("han"), snapshot.get(7));
+        assertNull(snapshot.get(6));
+        assertNull(snapshot.get(8));
+    }
+
+    @Test
+    public void manyRecordsAndMissingIds() throws IOException {
+        final int count = 5000;
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            for (int i = 0; i < count; i++) {
+                //只写偶数id，奇数id用于校验不存在的用户
+                writer.append(i * 2, bytes("user-" + i));
+            }
+            writer.commit();
+        }
+        final UserSnapshot snapshot = UserSnapshot.open(snapshotFile);
+        assertEquals(count, snapshot.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(bytes("user-" + i), snapshot.get(i * 2));
+            assertNull(snapshot.get(i * 2 + 1));
+        }
+        assertNull(snapshot.get(-1));
+        assertNull(snapshot.get(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void emptyRecordAndNegativeIds() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(Integer.MIN_VALUE, bytes("min"));
+            writer.append(-1, new byte[0]);
+            writer.append(Integer.MAX_VALUE, bytes("max"));
+            writer.commit();
+        }
+        final UserSnapshot snapshot = UserSnapshot.open(snapshotFile);
+        assertArrayEquals(bytes("min"), snapshot.get(Integer.MIN_VALUE));
+        //空记录（字段都为null时编码后可能为空）与不存在区分
+        assertArrayEquals(new byte[0], snapshot.get(-1));
+        assertArrayEquals(bytes("max"), snapshot.get(Integer.MAX_VALUE));
+        assertNull(snapshot.get(0));
+    }
+
+    @Test
+    public void outOfOrderAppendIsRejected() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(2, bytes("b"));
+            try {
+                writer.append(1, bytes("a"));
+                fail("userId降序追加应该失败");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                writer.append(2, bytes("b"));
+                fail("userId重复追加应该失败");
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(1, writer.size());
+        }
+    }
+
+    @Test
+    public void uncommittedWriterLeavesNoFiles() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(1, bytes("a"));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void commitReplacesExistingSnapshot() throws IOException {
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(1, bytes("old"));
+            writer.commit();
+        }
+        final UserSnapshot old = UserSnapshot.open(snapshotFile);
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+            writer.append(2, bytes("new"));
+            writer.commit();
+        }
+        final UserSnapshot current = UserSnapshot.open(snapshotFile);
+        //已打开的快照不受影响
+        assertArrayEquals(bytes("old"), old.get(1));
+        assertNull(current.get(1));
+        assertArrayEquals(bytes("new"), current.get(2));
+    }
+
+    @Test
+    public void invalidFileIsRejected() throws IOException {
+        Files.write(snapshotFile, bytes("not a snapshot file"));
+        try {
+            UserSnapshot.open(snapshotFile);
+            fail("非快照文件应该打开失败");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("快照"));
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
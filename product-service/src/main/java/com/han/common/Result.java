@@ -1,6 +1,13 @@
 package com.han.common;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
 public class Result {
+    //成功结果的json前缀和后缀，data为已序列化好的json时直接拼接输出，不再解析和重新序列化
+    private static final byte[] SUCCESS_JSON_PREFIX = "{\"code\":0,\"msg\":\"成功\",\"data\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUCCESS_JSON_SUFFIX = "}".getBytes(StandardCharsets.UTF_8);
 
     private Integer code;
     private String msg;
@@ -43,6 +50,29 @@ public class Result {
       return new Result(0,"成功",data);
     }
 
+    /**
+     * 成功结果的json字节数
+     *
+     * @param dataJson 已序列化好的data
+     * @return
+     */
+    public static int successJsonLength(byte[] dataJson) {
+        return SUCCESS_JSON_PREFIX.length + dataJson.length + SUCCESS_JSON_SUFFIX.length;
+    }
+
+    /**
+     * 输出成功结果的json，字段与{@link #SUCCESS(Object)}序列化的结果相同
+     *
+     * @param outputStream
+     * @param dataJson     已序列化好的data
+     * @throws IOException
+     */
+    public static void writeSuccessJson(OutputStream outputStream, byte[] dataJson) throws IOException {
+        outputStream.write(SUCCESS_JSON_PREFIX);
+        outputStream.write(dataJson);
+        outputStream.write(SUCCESS_JSON_SUFFIX);
+    }
+
     public static Result FILE(){
         return new Result(1,"失败",null);
     }
@@ -0,0 +1,39 @@
+package com.han.config;
+
+import com.han.limit.StockLimitInterceptor;
+import com.han.trace.TraceInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    @Autowired
+    private TraceInterceptor traceInterceptor;
+    @Autowired
+    private StockLimitInterceptor stockLimitInterceptor;
+
+    /**
+     * 用户查询接口返回ETag，客户端携带If-None-Match重新校验时，数据未变化则返回304，不再传输响应体
+     *
+     * @return
+     */
+    @Bean
+    public FilterRegistrationBean<ShallowEtagHeaderFilter> userEtagFilter() {
+        FilterRegistrationBean<ShallowEtagHeaderFilter> registrationBean = new FilterRegistrationBean<>(new ShallowEtagHeaderFilter());
+        registrationBean.addUrlPatterns("/findUserById");
+        registrationBean.setName("userEtagFilter");
+        return registrationBean;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(traceInterceptor).excludePathPatterns("/trace/**");
+        //只拦截标记了@StockLimited的接口
+        registry.addInterceptor(stockLimitInterceptor).excludePathPatterns("/trace/**");
+    }
+}
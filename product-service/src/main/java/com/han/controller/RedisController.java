@@ -1,6 +1,15 @@
 package com.han.controller;
 
+import com.han.common.Result;
+import com.han.dto.CartDeductResult;
+import com.han.dto.CartItem;
+import com.han.dto.StockReservationResult;
+import com.han.limit.StockLimited;
+import com.han.limit.StockRequestLimiter;
 import com.han.lock.RedisLock;
+import com.han.service.IStockService;
+import com.han.service.StockDeductUnknownException;
+import com.han.trace.RequestTrace;
 import org.redisson.Redisson;
 import org.redisson.api.RLock;
 import org.redisson.api.RReadWriteLock;
@@ -8,9 +17,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -19,7 +33,8 @@ import java.util.concurrent.TimeUnit;
 @RestController
 public class RedisController {
     private static final String productStockLockKey = "product:stock:lock:100";
-    private static final String productStockKey = "product:stock:100";
+    //与IStockServiceImpl的库存key一致（hash tag {product:stock}），购物车和预占扣减的是同一份库存
+    private static final String productStockKey = "{product:stock}:100";
     private static final Integer TIMEOUT = 1000 * 10;
     private Logger logger = LoggerFactory.getLogger(RedisController.class);
     @Autowired
@@ -28,23 +43,21 @@ public class RedisController {
     RedisLock redisLock;
     @Autowired
     Redisson redisson;
+    @Autowired
+    StockRequestLimiter stockRequestLimiter;
+    @Autowired
+    IStockService stockService;
 
     /**
      * 加锁第一种：多线程下不安全，会产生库存多扣除情况，出现超卖
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/deductStock")
     public String deductStock() {
 
-        int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-        if (productStock > 0) {
-            productStock = productStock - 1;
-            stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-            logger.error("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-        } else {
-            logger.error("【{}】商品扣减库存失败", productStockKey);
-        }
+        deductOneStock();
         return "end";
     }
 
@@ -54,23 +67,19 @@ public class RedisController {
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/deductStock2")
     public String deductStock2() {
         long time = System.currentTimeMillis() + TIMEOUT;
         final String lockTime = String.valueOf(time);
         try {
+            final long lockStart = RequestTrace.stageStart();
             final boolean lock = redisLock.lock(productStockLockKey, lockTime);
+            RequestTrace.stageEnd("lockWait", lockStart);
             if (!lock) {
                 return "哎哟喂，人太多，请稍后再试~~";
             }
-            int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-            if (productStock > 0) {
-                productStock = productStock - 1;
-                stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-                logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-            } else {
-                logger.error("【{}】商品扣减库存失败", productStockKey);
-            }
+            deductOneStock();
             //当程序执行到此处之前宕机，会出现productStockLockKey无法删除，导致后面的线程无法执行上面的程序
         } finally {
             //当程序执行到此处之前宕机，会出现productStockLockKey无法删除，导致后面的线程无法执行上面的程序
@@ -85,6 +94,7 @@ public class RedisController {
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/deductStock3")
     public String deductStock3() {
         long time = System.currentTimeMillis() + TIMEOUT;
@@ -95,18 +105,13 @@ public class RedisController {
             //当程序执行到此处之前宕机，会出现productStockLockKey无法删除，导致后面的线程无法执行上面的程序
             stringRedisTemplate.expire(productStockLockKey,TIMEOUT, TimeUnit.SECONDS);//设置超时时间*/
             //原子性，但是又有新的问题，当下面的业务执行时间超过key设置的超时时间，多线程情况下执行会导致key被其他线程执行删除（当其他线程执行时间快的时候）
+            final long lockStart = RequestTrace.stageStart();
             final boolean lock = stringRedisTemplate.opsForValue().setIfAbsent(productStockLockKey, lockTime, TIMEOUT, TimeUnit.SECONDS);
+            RequestTrace.stageEnd("lockWait", lockStart);
             if (!lock) {
                 return "哎哟喂，人太多，请稍后再试~~";
             }
-            int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-            if (productStock > 0) {
-                productStock = productStock - 1;
-                stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-                logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-            } else {
-                logger.error("【{}】商品扣减库存失败", productStockKey);
-            }
+            deductOneStock();
         } finally {
             stringRedisTemplate.delete(productStockKey);
         }
@@ -121,6 +126,7 @@ public class RedisController {
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/deductStock4")
     public String deductStock4() {
         final RLock redissonLock = redisson.getLock(productStockLockKey);
@@ -129,15 +135,10 @@ public class RedisController {
                 return "哎哟喂，人太多，请稍后再试~~";
             }
             //加锁，实现续命（默认时间30秒）
+            final long lockStart = RequestTrace.stageStart();
             redissonLock.lock();
-            int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-            if (productStock > 0) {
-                productStock = productStock - 1;
-                stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-                logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-            } else {
-                logger.error("【{}】商品扣减库存失败", productStockKey);
-            }
+            RequestTrace.stageEnd("lockWait", lockStart);
+            deductOneStock();
         } finally {
             redissonLock.unlock();
         }
@@ -152,6 +153,7 @@ public class RedisController {
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/readLock")
     public String readLock() {
         final RReadWriteLock readWriteLock = redisson.getReadWriteLock(productStockLockKey);
@@ -161,14 +163,7 @@ public class RedisController {
         final RLock rLock = readWriteLock.readLock();
         try {
             //加锁，实现续命（默认时间30秒）
-            int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-            if (productStock > 0) {
-                productStock = productStock - 1;
-                stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-                logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-            } else {
-                logger.error("【{}】商品扣减库存失败", productStockKey);
-            }
+            deductOneStock();
         } finally {
             rLock.unlock();
         }
@@ -184,6 +179,7 @@ public class RedisController {
      *
      * @return
      */
+    @StockLimited
     @RequestMapping("/writeLock")
     public String writeLock() {
         final RReadWriteLock readWriteLock = redisson.getReadWriteLock(productStockLockKey);
@@ -193,17 +189,136 @@ public class RedisController {
         final RLock rLock = readWriteLock.writeLock();
         try {
             //加锁，实现续命（默认时间30秒）
-            int productStock = Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
-            if (productStock > 0) {
-                productStock = productStock - 1;
-                stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
-                logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
-            } else {
-                logger.error("【{}】商品扣减库存失败", productStockKey);
-            }
+            deductOneStock();
         } finally {
             rLock.unlock();
         }
         return "end";
     }
+
+    /**
+     * 购物车批量扣减库存
+     * 一次lua脚本调用检查并扣减购物车中所有商品的库存，全部成功或全部不扣减，不需要对每个商品加锁
+     *
+     * @param items
+     * @return
+     */
+    @StockLimited(checkSoldOut = false)
+    @PostMapping("/deductCartStock")
+    public Result deductCartStock(@RequestBody List<CartItem> items) {
+        if (CollectionUtils.isEmpty(items)) {
+            return Result.FILE("购物车不能为空");
+        }
+        try {
+            final CartDeductResult result = stockService.deductCart(items);
+            if (result.getSuccess()) {
+                logger.info("购物车【{}】个商品扣减库存成功", result.getItems().size());
+                return Result.SUCCESS(result);
+            }
+            logger.error("购物车商品库存不足，扣减库存失败");
+            return new Result(1, "商品库存不足", result);
+        } catch (StockDeductUnknownException e) {
+            //库存可能已经扣减，不能按失败处理，由调用方核对后再处理
+            logger.error("购物车扣减库存结果未知", e);
+            return Result.FILE(1005, e.getMessage());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return Result.FILE(e.getMessage());
+        }
+    }
+
+    /**
+     * 预占购物车库存（下单），在过期时间内确认（支付成功）或取消，过期未确认时库存自动归还
+     * 预占期间不持有分布式锁
+     *
+     * @param items
+     * @return
+     */
+    @StockLimited(checkSoldOut = false)
+    @PostMapping("/reserveStock")
+    public Result reserveStock(@RequestBody List<CartItem> items) {
+        if (CollectionUtils.isEmpty(items)) {
+            return Result.FILE("购物车不能为空");
+        }
+        try {
+            final StockReservationResult result = stockService.reserve(items);
+            if (result.getSuccess()) {
+                logger.info("预占【{}】库存成功，过期时间【{}】", result.getReservationId(), result.getExpireTime());
+                return Result.SUCCESS(result);
+            }
+            logger.error("购物车商品库存不足，预占库存失败");
+            return new Result(1, "商品库存不足", result);
+        } catch (IllegalArgumentException e) {
+            return Result.FILE(e.getMessage());
+        }
+    }
+
+    /**
+     * 确认预占（支付成功），库存不再归还
+     *
+     * @param reservationId
+     * @return
+     */
+    @RequestMapping("/confirmReservation")
+    public Result confirmReservation(String reservationId) {
+        if (StringUtils.isEmpty(reservationId)) {
+            return Result.FILE("预占id不能为空");
+        }
+        if (stockService.confirmReservation(reservationId)) {
+            return Result.SUCCESS(reservationId);
+        }
+        return Result.FILE("预占【" + reservationId + "】不存在或已过期");
+    }
+
+    /**
+     * 取消预占，归还库存
+     *
+     * @param reservationId
+     * @return
+     */
+    @RequestMapping("/cancelReservation")
+    public Result cancelReservation(String reservationId) {
+        if (StringUtils.isEmpty(reservationId)) {
+            return Result.FILE("预占id不能为空");
+        }
+        if (stockService.cancelReservation(reservationId)) {
+            return Result.SUCCESS(reservationId);
+        }
+        return Result.FILE("预占【" + reservationId + "】不存在或已处理");
+    }
+
+    /**
+     * 读取库存，库存充足时减1写回（读和写之间不是原子的，由各个加锁方式保证并发安全）
+     *
+     * @return 是否扣减成功
+     */
+    boolean deductOneStock() {
+        int productStock = getStock();
+        if (productStock > 0) {
+            productStock = productStock - 1;
+            setStock(productStock);
+            logger.info("【{}】商品扣减库成功，当前可用库存为【{}】", productStockKey, productStock);
+            return true;
+        }
+        logger.error("【{}】商品扣减库存失败", productStockKey);
+        stockRequestLimiter.markSoldOut();
+        return false;
+    }
+
+    private int getStock() {
+        final long start = RequestTrace.stageStart();
+        try {
+            return Integer.parseInt(stringRedisTemplate.opsForValue().get(productStockKey));
+        } finally {
+            RequestTrace.stageEnd("redisGet", start);
+        }
+    }
+
+    private void setStock(int productStock) {
+        final long start = RequestTrace.stageStart();
+        try {
+            stringRedisTemplate.opsForValue().set(productStockKey, productStock + "");
+        } finally {
+            RequestTrace.stageEnd("redisSet", start);
+        }
+    }
 }
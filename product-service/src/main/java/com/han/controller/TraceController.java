@@ -0,0 +1,28 @@
+package com.han.controller;
+
+import com.han.common.Result;
+import com.han.trace.SlowRequestRecorder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * 慢请求各阶段耗时查询
+ */
+@RestController
+public class TraceController {
+    @Autowired
+    private SlowRequestRecorder slowRequestRecorder;
+
+    /**
+     * 最近耗时最长的请求及各阶段耗时（微秒）
+     *
+     * @param limit
+     * @return
+     */
+    @GetMapping("/trace/slowRequests")
+    public Result slowRequests(@RequestParam(value = "limit", defaultValue = "20") Integer limit) {
+        return Result.SUCCESS(slowRequestRecorder.slowest(limit));
+    }
+}
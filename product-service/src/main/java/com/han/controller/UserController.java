@@ -1,25 +1,40 @@
 package com.han.controller;
 
 import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.han.common.Result;
 import com.han.dto.NullObjectResult;
 import com.han.entity.User;
 import com.han.filter.RedisBloomFilter;
+import com.han.filter.RedisCuckooFilter;
 import com.han.service.IUserService;
+import com.han.trace.RequestTrace;
 import org.redisson.Redisson;
 import org.redisson.api.RLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.MediaType;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * redis布隆过滤器的使用
@@ -27,6 +42,10 @@ import java.util.concurrent.TimeUnit;
 @RestController
 public class UserController {
     private static final String USER_KEY = "user:";
+    private static final String USER_BLOOM_KEY = "user:bloom";
+    private static final String USER_CUCKOO_KEY = "user:cuckoo";
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final Logger logger = LoggerFactory.getLogger(UserController.class);
     @Autowired
     private IUserService userService;
     @Autowired
@@ -36,6 +55,8 @@ public class UserController {
     @Autowired
     RedisBloomFilter redisBloomFilter;
     @Autowired
+    RedisCuckooFilter redisCuckooFilter;
+    @Autowired
     Redisson redisson;
 
     /**
@@ -50,6 +71,21 @@ public class UserController {
         return Result.SUCCESS(user);
     }
 
+    /**
+     * 批量获取用户信息（直接查询mysql，一次in查询），不存在的用户不返回
+     *
+     * @param userIds
+     * @return
+     */
+    @GetMapping("/findUsersByIds")
+    public Result findUsersByIds(@RequestParam("userIds") List<Integer> userIds) {
+        if (userIds.size() > MAX_BATCH_SIZE) {
+            return Result.FILE(1004, "单次最多查询【" + MAX_BATCH_SIZE + "】个用户");
+        }
+        final List<User> users = userService.findUsersByUserIds(userIds);
+        return Result.SUCCESS(users);
+    }
+
     /**
      * 通过缓存获取用户信息
      * 获取用户信息（如果缓存中有数据，就从缓存中获取，没有则查询数据库在放入缓存中）
@@ -57,24 +93,31 @@ public class UserController {
      * 1、缓存穿透：缓存中没有查询到数据，数据中也没有查询到数据，每次访问都会去查询数据库，会给数据带来压力
      * 2、缓存击穿：缓存中没有，数据库中有，当key在缓存中过期时，此时若有大量并发请求过来，会去查询数据库再设置到缓存中，大并发的请求可能会瞬间把后端DB压垮
      * 3、缓存雪崩：当缓存服务器重启或者大量缓存集中在某一个时间段失效，这样在失效的时候，需要重新查询数据库数据再放入缓存中，也会给后端系统(比如DB)带来很大压力。
+     * 缓存命中时直接输出缓存中的json字节，不经过解析和重新序列化
      *
      * @param userId
-     * @return
+     * @param response
      */
     @GetMapping("/findUserByCache")
-    public Result findUserByCache(Integer userId) {
-        String userKey = USER_KEY + userId;
-        final String userString = stringRedisTemplate.opsForValue().get(userKey);
-        if (!StringUtils.isEmpty(userString)) {
-            final User user = JSONObject.toJavaObject(JSON.parseObject(userString), User.class);
-            return Result.SUCCESS(user);
+    public void findUserByCache(Integer userId, HttpServletResponse response) throws IOException {
+        final byte[] userKey = (USER_KEY + userId).getBytes(StandardCharsets.UTF_8);
+        //缓存中保存的是序列化好的用户json，命中时直接拼接成功结果写出
+        final long getStart = RequestTrace.stageStart();
+        final byte[] userJson = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(userKey));
+        RequestTrace.stageEnd("redisGet", getStart);
+        if (null != userJson && userJson.length > 0) {
+            writeSuccessJson(response, userJson);
+            return;
         }
         final User user = userService.findUserByUserId(userId);
         if (null != user) {
-            stringRedisTemplate.opsForValue().set(userKey, JSONObject.toJSONString(user), 5, TimeUnit.SECONDS);
-            return Result.SUCCESS(user);
+            final byte[] json = JSON.toJSONBytes(user);
+            final long setStart = RequestTrace.stageStart();
+            stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.setEx(userKey, 5, json));
+            RequestTrace.stageEnd("redisSet", setStart);
+            writeSuccessJson(response, json);
         } else {
-            return Result.FILE("用户【" + userId + "】信息不存在");
+            writeJson(response, JSON.toJSONBytes(Result.FILE("用户【" + userId + "】信息不存在"), SerializerFeature.WriteMapNullValue));
         }
     }
 
@@ -93,7 +136,7 @@ public class UserController {
     @GetMapping("/findUserByCachePassNull")
     public Result findUserByCachePassNull(Integer userId) {
         String userKey = USER_KEY + userId;
-        final Object object = redisTemplate.opsForValue().get(userKey);
+        final Object object = getCache(userKey);
         if (!StringUtils.isEmpty(object)) {
             if (object instanceof NullObjectResult) {
                 return Result.FILE(1001, "用户【" + userId + "】信息不存在,返回空对象");
@@ -102,10 +145,10 @@ public class UserController {
         }
         final User user = userService.findUserByUserId(userId);
         if (null != user) {
-            redisTemplate.opsForValue().set(userKey, user, 5, TimeUnit.SECONDS);
+            setCache(userKey, user, 5);
             return Result.SUCCESS(user);
         } else {
-            redisTemplate.opsForValue().set(userKey, new NullObjectResult(), 20, TimeUnit.SECONDS);
+            setCache(userKey, new NullObjectResult(), 20);
         }
         return Result.FILE("用户【" + userId + "】信息不存在");
     }
@@ -125,10 +168,10 @@ public class UserController {
     public Result findUserByCachePassBloomFilter(Integer userId) {
         String userKey = USER_KEY + userId;
         //使用布隆过滤器进行过滤
-        if (!redisBloomFilter.filterIsExistKey("user:bloom", userId + "")) {
+        if (!redisBloomFilter.filterIsExistKey(USER_BLOOM_KEY, userId + "")) {
             return Result.FILE(1002, "经过布隆过滤器过滤之后，该用户【" + userId + "】信息不存在");
         }
-        final Object object = redisTemplate.opsForValue().get(userKey);
+        final Object object = getCache(userKey);
         if (!StringUtils.isEmpty(object)) {
             if (object instanceof NullObjectResult) {
                 return Result.FILE(1001, "用户【" + userId + "】信息不存在,返回空对象");
@@ -137,10 +180,44 @@ public class UserController {
         }
         final User user = userService.findUserByUserId(userId);
         if (null != user) {
-            redisTemplate.opsForValue().set(userKey, user, 5, TimeUnit.SECONDS);
+            setCache(userKey, user, 5);
             return Result.SUCCESS(user);
         } else {
-            redisTemplate.opsForValue().set(userKey, new NullObjectResult(), 20, TimeUnit.SECONDS);
+            setCache(userKey, new NullObjectResult(), 20);
+        }
+        return Result.FILE("用户【" + userId + "】信息不存在");
+    }
+
+    /**
+     * 通过布谷鸟过滤器解决缓存穿透
+     * 与布隆过滤器相同，但支持删除元素，用户被删除或禁用后从过滤器中删除，请求直接被过滤
+     *
+     * @param userId
+     * @return
+     */
+    @GetMapping("/findUserByCachePassCuckooFilter")
+    public Result findUserByCachePassCuckooFilter(Integer userId) {
+        String userKey = USER_KEY + userId;
+        //使用布谷鸟过滤器进行过滤
+        final long filterStart = RequestTrace.stageStart();
+        final boolean mightContain = redisCuckooFilter.mightContain(USER_CUCKOO_KEY, userId + "");
+        RequestTrace.stageEnd("cuckoo", filterStart);
+        if (!mightContain) {
+            return Result.FILE(1002, "经过布谷鸟过滤器过滤之后，该用户【" + userId + "】信息不存在");
+        }
+        final Object object = getCache(userKey);
+        if (!StringUtils.isEmpty(object)) {
+            if (object instanceof NullObjectResult) {
+                return Result.FILE(1001, "用户【" + userId + "】信息不存在,返回空对象");
+            }
+            return Result.SUCCESS(object);
+        }
+        final User user = userService.findUserByUserId(userId);
+        if (null != user) {
+            setCache(userKey, user, 5);
+            return Result.SUCCESS(user);
+        } else {
+            setCache(userKey, new NullObjectResult(), 20);
         }
         return Result.FILE("用户【" + userId + "】信息不存在");
     }
@@ -157,7 +234,7 @@ public class UserController {
     public Result findUserByCachePassBloomFilterSolveBreakdown(Integer userId) {
         String userKey = USER_KEY + userId;
         //使用布隆过滤器进行过滤
-        if (!redisBloomFilter.filterIsExistKey("user:bloom", userId + "")) {
+        if (!redisBloomFilter.filterIsExistKey(USER_BLOOM_KEY, userId + "")) {
             return Result.FILE(1002, "经过布隆过滤器过滤之后，该用户【" + userId + "】信息不存在");
         }
         final RLock redissonLock = redisson.getLock(userKey);
@@ -165,7 +242,7 @@ public class UserController {
         if (null == redissonLock) {
             return Result.FILE(1003, "服务器繁忙，请稍后再试！！！");
         }
-        Object object = redisTemplate.opsForValue().get(userKey);
+        Object object = getCache(userKey);
         if (!StringUtils.isEmpty(object)) {
             if (object instanceof NullObjectResult) {
                 return Result.FILE(1001, "用户【" + userId + "】信息不存在,返回空对象");
@@ -174,8 +251,10 @@ public class UserController {
         }
         try {
             //加锁,防止一个key过期时，多个请求过来查询key会对通一条数据进行多次查询
+            final long lockStart = RequestTrace.stageStart();
             redissonLock.lock();
-            object = redisTemplate.opsForValue().get(userKey);
+            RequestTrace.stageEnd("lockWait", lockStart);
+            object = getCache(userKey);
             if (!StringUtils.isEmpty(object)) {
                 if (object instanceof NullObjectResult) {
                     return Result.FILE(1001, "用户【" + userId + "】信息不存在,返回空对象");
@@ -184,10 +263,10 @@ public class UserController {
             }
             final User user = userService.findUserByUserId(userId);
             if (null != user) {
-                redisTemplate.opsForValue().set(userKey, user, 5, TimeUnit.SECONDS);
+                setCache(userKey, user, 5);
                 return Result.SUCCESS(user);
             } else {
-                redisTemplate.opsForValue().set(userKey, new NullObjectResult(), 20, TimeUnit.SECONDS);
+                setCache(userKey, new NullObjectResult(), 20);
             }
             return Result.FILE("用户【" + userId + "】信息不存在");
         } finally {
@@ -198,16 +277,125 @@ public class UserController {
     }
 
     /**
-     * 设置用户布隆过滤器的值
+     * 设置用户布隆过滤器的值（写入新版本的分块后切换版本，可以重复执行，已删除的用户在重建后不再命中）
      */
     @RequestMapping("/putBloomData")
     public void putBloomData() {
         List<Integer> userIds = this.userService.findAllUserIds();
         if (!CollectionUtils.isEmpty(userIds)) {
-            userIds.stream().forEach(userId -> {
-                redisBloomFilter.put("user:bloom", userId + "");
-            });
+            final List<String> values = userIds.stream().map(String::valueOf).collect(Collectors.toList());
+            if (!redisBloomFilter.rebuild(USER_BLOOM_KEY, values)) {
+                logger.info("其他实例正在重建用户布隆过滤器");
+            }
+        }
+    }
+
+    /**
+     * 启动完成后，用户布隆过滤器未初始化（如从单个bitmap或不带版本号的分块升级）时自动写入，初始化完成前过滤器不拦截请求
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initBloomData() {
+        try {
+            if (!redisBloomFilter.isReady(USER_BLOOM_KEY)) {
+                logger.info("用户布隆过滤器未初始化，开始写入");
+                putBloomData();
+            }
+        } catch (Exception e) {
+            logger.error("初始化用户布隆过滤器失败，需要手动执行/putBloomData", e);
         }
     }
-}
 
+    /**
+     * 设置用户布谷鸟过滤器的值（在新key中重建后替换并标记为已初始化，可以重复执行）
+     */
+    @RequestMapping("/putCuckooData")
+    public void putCuckooData() {
+        List<Integer> userIds = this.userService.findAllUserIds();
+        if (null == userIds) {
+            return;
+        }
+        final List<String> values = userIds.stream().map(String::valueOf).collect(Collectors.toList());
+        final int failed = redisCuckooFilter.rebuild(USER_CUCKOO_KEY, values);
+        if (failed < 0) {
+            logger.info("其他实例正在重建用户布谷鸟过滤器");
+        } else if (failed > 0) {
+            logger.error("重建布谷鸟过滤器时【{}】个用户添加失败，过滤器已满", failed);
+        }
+    }
+
+    /**
+     * 启动完成后，用户布谷鸟过滤器未初始化时自动写入，初始化完成前过滤器不拦截请求
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initCuckooData() {
+        try {
+            if (!redisCuckooFilter.isReady(USER_CUCKOO_KEY)) {
+                logger.info("用户布谷鸟过滤器未初始化，开始写入");
+                putCuckooData();
+            }
+        } catch (Exception e) {
+            logger.error("初始化用户布谷鸟过滤器失败，需要手动执行/putCuckooData", e);
+        }
+    }
+
+    /**
+     * 用户被删除或禁用前，从布谷鸟过滤器中删除
+     * 只删除数据库中存在的用户（确实添加过），删除没有添加过的元素可能删掉指纹相同的其他用户
+     * 删除过的用户记录在过滤器的已删除集合中，重复删除返回false，/putCuckooData重建时不再添加
+     *
+     * @param userId
+     * @return
+     */
+    @RequestMapping("/removeCuckooData")
+    public Result removeCuckooData(Integer userId) {
+        if (!userService.existsInDatabase(userId)) {
+            return Result.FILE(1002, "用户【" + userId + "】在数据库中不存在，不能从布谷鸟过滤器中删除");
+        }
+        return Result.SUCCESS(redisCuckooFilter.remove(USER_CUCKOO_KEY, userId + ""));
+    }
+
+    /**
+     * 布隆过滤器和布谷鸟过滤器的填充率及估算误判率
+     *
+     * @return
+     */
+    @GetMapping("/filterStats")
+    public Result filterStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bloomFillRate", redisBloomFilter.fillRate(USER_BLOOM_KEY));
+        stats.put("bloomFpp", redisBloomFilter.estimatedFpp(USER_BLOOM_KEY));
+        stats.put("cuckooFillRate", redisCuckooFilter.fillRate(USER_CUCKOO_KEY));
+        stats.put("cuckooFpp", redisCuckooFilter.estimatedFpp(USER_CUCKOO_KEY));
+        return Result.SUCCESS(stats);
+    }
+
+    private Object getCache(String userKey) {
+        final long start = RequestTrace.stageStart();
+        try {
+            return redisTemplate.opsForValue().get(userKey);
+        } finally {
+            RequestTrace.stageEnd("redisGet", start);
+        }
+    }
+
+    private void setCache(String userKey, Object value, long timeoutSeconds) {
+        final long start = RequestTrace.stageStart();
+        try {
+            redisTemplate.opsForValue().set(userKey, value, timeoutSeconds, TimeUnit.SECONDS);
+        } finally {
+            RequestTrace.stageEnd("redisSet", start);
+        }
+    }
+
+    private static void writeSuccessJson(HttpServletResponse response, byte[] dataJson) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        response.setContentLength(Result.successJsonLength(dataJson));
+        Result.writeSuccessJson(response.getOutputStream(), dataJson);
+    }
+
+    private static void writeJson(HttpServletResponse response, byte[] json) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        response.setContentLength(json.length);
+        response.getOutputStream().write(json);
+    }
+}
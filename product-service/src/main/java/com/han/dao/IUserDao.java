@@ -5,6 +5,7 @@ import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 
+import java.util.Collection;
 import java.util.List;
 
 @Mapper
@@ -13,6 +14,28 @@ public interface IUserDao {
     @Select("select * from user where user_id = #{userId}")
     public User getByUserId(@Param("userId") Integer userId);
 
+    /**
+     * 批量查询用户信息（合并多个单条查询为一次in查询）
+     *
+     * @param userIds
+     * @return
+     */
+    @Select({"<script>",
+            "select user_id, user_name, password from user where user_id in",
+            "<foreach collection='userIds' item='userId' open='(' separator=',' close=')'>#{userId}</foreach>",
+            "</script>"})
+    List<User> findByUserIds(@Param("userIds") Collection<Integer> userIds);
+
+    /**
+     * 按userId升序分页查询用户信息（生成用户快照使用）
+     *
+     * @param lastUserId 上一页最后一个userId
+     * @param limit
+     * @return
+     */
+    @Select("select user_id, user_name, password from user where user_id > #{lastUserId} order by user_id limit #{limit}")
+    List<User> findUsersAfter(@Param("lastUserId") Integer lastUserId, @Param("limit") Integer limit);
+
     @Select("select user_id from user")
     List<Integer> findAllUserIds();
 }
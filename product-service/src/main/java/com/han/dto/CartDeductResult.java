@@ -0,0 +1,33 @@
+package com.han.dto;
+
+import java.util.List;
+
+public class CartDeductResult {
+    //所有商品是否扣减成功（任一商品库存不足时都不扣减）
+    private Boolean success;
+    private List<CartItemResult> items;
+
+    public CartDeductResult() {
+    }
+
+    public CartDeductResult(Boolean success, List<CartItemResult> items) {
+        this.success = success;
+        this.items = items;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public List<CartItemResult> getItems() {
+        return items;
+    }
+
+    public void setItems(List<CartItemResult> items) {
+        this.items = items;
+    }
+}
@@ -0,0 +1,30 @@
+package com.han.dto;
+
+public class CartItem {
+    private String skuId;
+    private Integer quantity;
+
+    public CartItem() {
+    }
+
+    public CartItem(String skuId, Integer quantity) {
+        this.skuId = skuId;
+        this.quantity = quantity;
+    }
+
+    public String getSkuId() {
+        return skuId;
+    }
+
+    public void setSkuId(String skuId) {
+        this.skuId = skuId;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+}
@@ -0,0 +1,52 @@
+package com.han.dto;
+
+public class CartItemResult {
+    private String skuId;
+    private Integer quantity;
+    //库存是否充足
+    private Boolean success;
+    //扣减成功时为扣减后的库存，失败时为当前库存
+    private Long stock;
+
+    public CartItemResult() {
+    }
+
+    public CartItemResult(String skuId, Integer quantity, Boolean success, Long stock) {
+        this.skuId = skuId;
+        this.quantity = quantity;
+        this.success = success;
+        this.stock = stock;
+    }
+
+    public String getSkuId() {
+        return skuId;
+    }
+
+    public void setSkuId(String skuId) {
+        this.skuId = skuId;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public Long getStock() {
+        return stock;
+    }
+
+    public void setStock(Long stock) {
+        this.stock = stock;
+    }
+}
@@ -0,0 +1,54 @@
+package com.han.dto;
+
+import java.util.List;
+
+public class StockReservationResult {
+    //预占id，预占失败时为空
+    private String reservationId;
+    //过期时间（毫秒），过期未确认时库存自动归还
+    private Long expireTime;
+    private Boolean success;
+    private List<CartItemResult> items;
+
+    public StockReservationResult() {
+    }
+
+    public StockReservationResult(String reservationId, Long expireTime, Boolean success, List<CartItemResult> items) {
+        this.reservationId = reservationId;
+        this.expireTime = expireTime;
+        this.success = success;
+        this.items = items;
+    }
+
+    public String getReservationId() {
+        return reservationId;
+    }
+
+    public void setReservationId(String reservationId) {
+        this.reservationId = reservationId;
+    }
+
+    public Long getExpireTime() {
+        return expireTime;
+    }
+
+    public void setExpireTime(Long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(Boolean success) {
+        this.success = success;
+    }
+
+    public List<CartItemResult> getItems() {
+        return items;
+    }
+
+    public void setItems(List<CartItemResult> items) {
+        this.items = items;
+    }
+}
@@ -0,0 +1,16 @@
+package com.han.filter;
+
+/**
+ * 支持删除元素的成员过滤器（布隆过滤器的位被多个元素共享，不能删除）
+ */
+public interface DeletableMembershipFilter extends MembershipFilter {
+
+    /**
+     * 删除元素
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @param value     元素
+     * @return 是否删除成功
+     */
+    boolean remove(String filterKey, String value);
+}
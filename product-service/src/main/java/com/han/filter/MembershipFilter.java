@@ -0,0 +1,42 @@
+package com.han.filter;
+
+/**
+ * redis中的成员过滤器（判断元素一定不存在或可能存在）
+ * 支持删除元素的过滤器实现{@link DeletableMembershipFilter}
+ */
+public interface MembershipFilter {
+
+    /**
+     * 添加元素
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @param value     元素
+     * @return 是否添加成功
+     */
+    boolean add(String filterKey, String value);
+
+    /**
+     * 判断元素是否可能存在
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @param value     元素
+     * @return false表示一定不存在
+     */
+    boolean mightContain(String filterKey, String value);
+
+    /**
+     * 填充率（已使用的位或槽位占比）
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @return
+     */
+    double fillRate(String filterKey);
+
+    /**
+     * 根据当前填充率估算的误判率
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @return
+     */
+    double estimatedFpp(String filterKey);
+}
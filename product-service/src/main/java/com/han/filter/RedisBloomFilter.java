@@ -1,41 +1,73 @@
 package com.han.filter;
 
 import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
+import com.han.trace.RequestTrace;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisStringCommands;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 分块布隆过滤器
+ * bitmap拆分为numBlocks个分块，每个分块是一个独立的redis key（bloomKey:分块下标），在集群中分布到不同的slot
+ * 一个元素的所有hash位都落在同一个分块中，每次添加或判断只访问一个key
+ * 布隆过滤器只能置位不能清除，重建时写入新版本的分块（bloomKey:版本号:分块下标），全部写入后把bloomKey:generation切换为新版本，
+ * 旧版本的分块在其他实例的版本缓存过期后自动删除；重建期间添加的元素同时写入当前版本和正在重建的版本（bloomKey:building）
+ * 未完成初始化时（bloomKey:generation不存在，如刚从单个bitmap或不带版本号的分块升级）判断元素可能存在，不会误判为不存在，
+ * 第一次重建完成后删除升级前的key
+ */
 @Component
-public class RedisBloomFilter {
+public class RedisBloomFilter implements MembershipFilter {
 
     static final int expectedInsertions = 100;//要插入多少数据
     static final double fpp = 0.01;//期望的误判率
+    static final int numBlocks = 16;//分块数量
+    //重建锁的有效时间（毫秒），同一时间只有一个实例重建
+    private static final long REBUILD_LOCK_MILLIS = 600000;
+    //确认已初始化后，在此时间内不再检查redis（毫秒），也是其他实例最长使用旧版本的时间
+    private static final long READY_CHECK_MILLIS = 10000;
+    //切换版本后旧版本分块的保留时间（毫秒），大于版本缓存时间
+    private static final long OLD_GENERATION_TTL_MILLIS = READY_CHECK_MILLIS * 3;
 
     //bit数组长度
     private static long numBits;
 
+    //每个分块的bit数组长度
+    private static long numBitsPerBlock;
+
     //hash函数数量
     private static int numHashFunctions;
 
     @Autowired
     private RedisTemplate redisTemplate;
 
+    //过滤器key -> 当前版本及下次检查版本的时间
+    private final Map<String, Generation> generations = new ConcurrentHashMap<>();
+
     static {
         numBits = optimalNumOfBits(expectedInsertions, fpp);
         numHashFunctions = optimalNumOfHashFunctions(expectedInsertions, numBits);
+        numBitsPerBlock = (numBits + numBlocks - 1) / numBlocks;
     }
 
     /**
-     * 根据key获取bitmap下标
+     * 根据hash获取分块内的bitmap下标
      */
-    private static long[] getIndexs(String key) {
-        long hash1 = hash(key);
+    private static long[] getIndexs(HashCode hashCode) {
+        long hash1 = hashCode.asLong();
         long hash2 = hash1 >>> 16;
         long[] result = new long[numHashFunctions];
         for (int i = 0; i < numHashFunctions; i++) {
@@ -43,14 +75,48 @@ public class RedisBloomFilter {
             if (combinedHash < 0) {
                 combinedHash = ~combinedHash;
             }
-            result[i] = combinedHash % numBits;
+            result[i] = combinedHash % numBitsPerBlock;
         }
         return result;
     }
 
-    private static long hash(String key) {
+    /**
+     * 根据hash获取分块的key，使用128位hash的高64位，与分块内下标使用的低64位相互独立
+     */
+    private static byte[] getBlockKey(String bloomKey, long generation, HashCode hashCode) {
+        long blockHash = ByteBuffer.wrap(hashCode.asBytes(), 8, 8).getLong();
+        int block = (int) ((blockHash >>> 1) % numBlocks);
+        return getBlockKey(bloomKey, generation, block);
+    }
+
+    private static byte[] getBlockKey(String bloomKey, long generation, int block) {
+        return (bloomKey + ":" + generation + ":" + block).getBytes();
+    }
+
+    //当前版本号
+    private static byte[] getGenerationKey(String bloomKey) {
+        return (bloomKey + ":generation").getBytes();
+    }
+
+    //正在重建的版本号
+    private static byte[] getBuildingKey(String bloomKey) {
+        return (bloomKey + ":building").getBytes();
+    }
+
+    //升级前的key：单个bitmap、不带版本号的分块及其初始化标记
+    private static byte[][] getLegacyKeys(String bloomKey) {
+        final byte[][] keys = new byte[numBlocks + 2][];
+        keys[0] = bloomKey.getBytes();
+        keys[1] = (bloomKey + ":ready").getBytes();
+        for (int block = 0; block < numBlocks; block++) {
+            keys[block + 2] = (bloomKey + ":" + block).getBytes();
+        }
+        return keys;
+    }
+
+    private static HashCode hash(String key) {
         Charset charset = Charset.forName("UTF-8");
-        return Hashing.murmur3_128().hashObject(key, Funnels.stringFunnel(charset)).asLong();
+        return Hashing.murmur3_128().hashObject(key, Funnels.stringFunnel(charset));
     }
 
     //计算hash函数个数
@@ -67,7 +133,8 @@ public class RedisBloomFilter {
     }
 
     /**
-     * 设置key对应的Bloom过滤器位置为1
+     * 设置key对应的Bloom过滤器位置为1，写入当前版本，正在重建时同时写入重建中的版本
+     * 每次从redis读取版本号，不使用缓存，切换版本后立即写入新版本
      *
      * @param bloomKey 存在缓存中的布隆过滤器的key
      * @param redisKey 查询redis数据的缓存key
@@ -76,11 +143,26 @@ public class RedisBloomFilter {
     public List put(String bloomKey, String redisKey) {
         Assert.notNull(bloomKey, "存在缓存中的布隆过滤器的key不能为空");
         Assert.notNull(redisKey, "查询redis数据的缓存key不能为空");
-        final long[] indexs = getIndexs(redisKey);
+        final Long generation = getLong(getGenerationKey(bloomKey));
+        final Long building = getLong(getBuildingKey(bloomKey));
+        final List list = new ArrayList();
+        if (null != generation) {
+            list.addAll(put(bloomKey, generation, redisKey));
+        }
+        if (null != building && !building.equals(generation)) {
+            list.addAll(put(bloomKey, building, redisKey));
+        }
+        return list;
+    }
+
+    private List put(String bloomKey, long generation, String redisKey) {
+        final HashCode hashCode = hash(redisKey);
+        final byte[] blockKey = getBlockKey(bloomKey, generation, hashCode);
+        final long[] indexs = getIndexs(hashCode);
         final List list = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
             redisConnection.openPipeline();
             for (long index : indexs) {
-                final Boolean aBoolean = redisConnection.setBit(bloomKey.getBytes(), index, true);
+                final Boolean aBoolean = redisConnection.setBit(blockKey, index, true);
             }
             redisConnection.close();
             return null;
@@ -88,6 +170,11 @@ public class RedisBloomFilter {
         return list;
     }
 
+    private Long getLong(byte[] key) {
+        final byte[] value = (byte[]) redisTemplate.execute((RedisCallback<byte[]>) redisConnection -> redisConnection.get(key));
+        return null == value ? null : Long.valueOf(new String(value));
+    }
+
     /**
      * 通过Bloom过滤器判断key是否存在
      *
@@ -98,18 +185,166 @@ public class RedisBloomFilter {
     public Boolean filterIsExistKey(String bloomKey, String redisKey) {
         Assert.notNull(bloomKey, "存在缓存中的布隆过滤器的key不能为空");
         Assert.notNull(redisKey, "查询redis数据的缓存key不能为空");
-        final long[] indexs = getIndexs(redisKey);
+        final long start = RequestTrace.stageStart();
+        final Long generation = currentGeneration(bloomKey);
+        if (null == generation) {
+            RequestTrace.stageEnd("bloom", start);
+            return true;
+        }
+        final HashCode hashCode = hash(redisKey);
+        final byte[] blockKey = getBlockKey(bloomKey, generation, hashCode);
+        final long[] indexs = getIndexs(hashCode);
         final List list = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
             redisConnection.openPipeline();
             for (long index : indexs) {
-                final Boolean aBoolean = redisConnection.getBit(bloomKey.getBytes(), index);
+                final Boolean aBoolean = redisConnection.getBit(blockKey, index);
             }
             redisConnection.close();
             return null;
         });
+        RequestTrace.stageEnd("bloom", start);
         return !list.contains(false);
     }
 
+    /**
+     * 过滤器是否已经完成初始化
+     *
+     * @param bloomKey 存在缓存中的布隆过滤器的key
+     * @return
+     */
+    public boolean isReady(String bloomKey) {
+        return null != currentGeneration(bloomKey);
+    }
+
+    /**
+     * 当前版本号，确认后在READY_CHECK_MILLIS内使用缓存
+     *
+     * @param bloomKey 存在缓存中的布隆过滤器的key
+     * @return 未初始化时返回null
+     */
+    private Long currentGeneration(String bloomKey) {
+        final long now = System.currentTimeMillis();
+        final Generation cached = generations.get(bloomKey);
+        if (null != cached && now < cached.checkAt) {
+            return cached.value;
+        }
+        final Long generation = getLong(getGenerationKey(bloomKey));
+        if (null != generation) {
+            generations.put(bloomKey, new Generation(generation, now + READY_CHECK_MILLIS));
+        } else {
+            generations.remove(bloomKey);
+        }
+        return generation;
+    }
+
+    /**
+     * 在新版本的分块中写入全部元素后切换版本，可以重复执行，多个实例同时执行时只有一个实例写入
+     * 新版本从空的分块开始，已删除的元素在重建后不再命中；切换后旧版本分块延迟删除，升级前的key直接删除
+     *
+     * @param bloomKey 存在缓存中的布隆过滤器的key
+     * @param values   全部元素
+     * @return 其他实例正在重建时返回false
+     */
+    public boolean rebuild(String bloomKey, Collection<String> values) {
+        Assert.notNull(bloomKey, "存在缓存中的布隆过滤器的key不能为空");
+        final byte[] lockKey = (bloomKey + ":rebuilding").getBytes();
+        final Boolean locked = (Boolean) redisTemplate.execute((RedisCallback<Boolean>) redisConnection ->
+                redisConnection.set(lockKey, "1".getBytes(), Expiration.milliseconds(REBUILD_LOCK_MILLIS),
+                        RedisStringCommands.SetOption.SET_IF_ABSENT));
+        if (!Boolean.TRUE.equals(locked)) {
+            return false;
+        }
+        final Long oldGeneration = getLong(getGenerationKey(bloomKey));
+        final long newGeneration = (Long) redisTemplate.execute((RedisCallback<Long>) redisConnection ->
+                redisConnection.incr((bloomKey + ":sequence").getBytes()));
+        boolean swapped = false;
+        try {
+            redisTemplate.execute((RedisCallback<Boolean>) redisConnection ->
+                    redisConnection.set(getBuildingKey(bloomKey), String.valueOf(newGeneration).getBytes(),
+                            Expiration.milliseconds(REBUILD_LOCK_MILLIS), RedisStringCommands.SetOption.UPSERT));
+            values.forEach(value -> put(bloomKey, newGeneration, value));
+            redisTemplate.execute((RedisCallback<Boolean>) redisConnection ->
+                    redisConnection.set(getGenerationKey(bloomKey), String.valueOf(newGeneration).getBytes()));
+            swapped = true;
+            generations.put(bloomKey, new Generation(newGeneration, System.currentTimeMillis() + READY_CHECK_MILLIS));
+            redisTemplate.execute((RedisCallback<Object>) redisConnection -> {
+                if (null != oldGeneration) {
+                    for (int block = 0; block < numBlocks; block++) {
+                        redisConnection.pExpire(getBlockKey(bloomKey, oldGeneration, block), OLD_GENERATION_TTL_MILLIS);
+                    }
+                }
+                //分块在集群中分布在不同的slot，逐个删除
+                for (byte[] legacyKey : getLegacyKeys(bloomKey)) {
+                    redisConnection.del(legacyKey);
+                }
+                return null;
+            });
+            return true;
+        } finally {
+            final boolean keepNewGeneration = swapped;
+            redisTemplate.execute((RedisCallback<Object>) redisConnection -> {
+                redisConnection.del(getBuildingKey(bloomKey));
+                if (!keepNewGeneration) {
+                    for (int block = 0; block < numBlocks; block++) {
+                        redisConnection.del(getBlockKey(bloomKey, newGeneration, block));
+                    }
+                }
+                redisConnection.del(lockKey);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public boolean add(String filterKey, String value) {
+        put(filterKey, value);
+        return true;
+    }
+
+    @Override
+    public boolean mightContain(String filterKey, String value) {
+        return filterIsExistKey(filterKey, value);
+    }
+
+    /**
+     * 分块在集群中分布在不同的slot，逐个执行BITCOUNT，不使用pipeline
+     */
+    @Override
+    public double fillRate(String filterKey) {
+        Assert.notNull(filterKey, "存在缓存中的布隆过滤器的key不能为空");
+        final Long generation = currentGeneration(filterKey);
+        if (null == generation) {
+            return 0;
+        }
+        final Long bitCount = (Long) redisTemplate.execute((RedisCallback<Long>) redisConnection -> {
+            long total = 0;
+            for (int block = 0; block < numBlocks; block++) {
+                final Long count = redisConnection.bitCount(getBlockKey(filterKey, generation, block));
+                total += null == count ? 0 : count;
+            }
+            return total;
+        });
+        return (double) bitCount / (numBitsPerBlock * numBlocks);
+    }
+
+    /**
+     * 误判率约等于(置1的位占比)^hash函数数量（各分块填充率接近时）
+     */
+    @Override
+    public double estimatedFpp(String filterKey) {
+        return Math.pow(fillRate(filterKey), numHashFunctions);
+    }
+
+    private static final class Generation {
+        private final long value;
+        private final long checkAt;
+
+        private Generation(long value, long checkAt) {
+            this.value = value;
+            this.checkAt = checkAt;
+        }
+    }
+
     public static void main(String[] args) {
         //Jedis jedis = new Jedis("192.168.0.109", 6379);
         /*for (int i = 0; i < 100; i++) {
@@ -0,0 +1,252 @@
+package com.han.filter;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于redis的布谷鸟过滤器，支持删除元素
+ * 过滤器保存在一个string中，每个桶4个槽位，每个槽位保存元素的16位指纹，通过BITFIELD读写，需要redis 3.2及以上
+ * 添加、删除、查询都在lua脚本中原子执行，一次请求完成
+ * 指纹相同的元素各自保存一份，删除只删除一份，因此同一个元素只能添加一次，只能删除确实添加过的元素；
+ * 删除过的元素记录在已删除集合中，重复删除不会再删除指纹，重建时跳过这些元素，重新添加后才会移出集合；
+ * 需要重新导入全部元素时使用{@link #rebuild}，不要对当前过滤器重复添加
+ * 重建完成后设置已初始化标记，未完成初始化时（过滤器key不存在或为空）判断元素可能存在，不会误判为不存在
+ * 与布隆过滤器相比：误判率约为 8 * 填充率 / 2^16，低误判率时每个元素占用空间更少
+ */
+@Component
+public class RedisCuckooFilter implements DeletableMembershipFilter {
+
+    static final int expectedInsertions = 1000000;//要插入多少数据
+    private static final int SLOTS_PER_BUCKET = 4;
+    private static final int FINGERPRINT_BITS = 16;
+    private static final int MAX_KICKS = 500;
+    //最大装载率，超过后插入失败的概率明显升高
+    private static final double MAX_LOAD_FACTOR = 0.95;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT = script("scripts/cuckoo_add.lua");
+    private static final DefaultRedisScript<Long> REMOVE_SCRIPT = script("scripts/cuckoo_remove.lua");
+    private static final DefaultRedisScript<Long> EXISTS_SCRIPT = script("scripts/cuckoo_exists.lua");
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT = script("scripts/cuckoo_swap.lua");
+    //重建锁的有效时间（毫秒），同一时间只有一个实例重建
+    private static final long REBUILD_LOCK_MILLIS = 600000;
+    //确认已初始化后，在此时间内不再检查redis（毫秒）
+    private static final long READY_CHECK_MILLIS = 10000;
+
+    //桶数量，2的幂
+    private static final int numBuckets = optimalNumOfBuckets(expectedInsertions);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //过滤器key -> 下次检查是否已初始化的时间
+    private final Map<String, Long> readyCheckAt = new ConcurrentHashMap<>();
+
+    private static DefaultRedisScript<Long> script(String path) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    //计算桶数量
+    static int optimalNumOfBuckets(long n) {
+        final long buckets = (long) Math.ceil(n / (SLOTS_PER_BUCKET * MAX_LOAD_FACTOR));
+        return (int) Math.max(1, Long.highestOneBit(buckets - 1) << 1);
+    }
+
+    /**
+     * 元素的另一个桶下标：i ^ hash(指纹)，与lua脚本中的altIndex一致
+     */
+    static int altIndex(int index, int fingerprint) {
+        return (index ^ (int) ((fingerprint * 0x5bd1e995L) & 0xffffffffL)) & (numBuckets - 1);
+    }
+
+    /**
+     * 计算元素的指纹和两个桶下标
+     *
+     * @return [指纹, 桶下标1, 桶下标2]
+     */
+    static int[] locate(String value) {
+        final long hash = Hashing.murmur3_128().hashObject(value, Funnels.stringFunnel(StandardCharsets.UTF_8)).asLong();
+        int fingerprint = (int) ((hash >>> (Long.SIZE - FINGERPRINT_BITS)) & ((1 << FINGERPRINT_BITS) - 1));
+        if (fingerprint == 0) {
+            //0表示空槽位
+            fingerprint = 1;
+        }
+        final int index = (int) (hash & (numBuckets - 1));
+        return new int[]{fingerprint, index, altIndex(index, fingerprint)};
+    }
+
+    /**
+     * 添加元素，指纹相同时也保存一份，同一个元素重复添加会占用多个槽位
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @param value     元素
+     * @return 过滤器已满时返回false
+     */
+    @Override
+    public boolean add(String filterKey, String value) {
+        Assert.notNull(filterKey, "存在缓存中的布谷鸟过滤器的key不能为空");
+        return add(keys(filterKey), value);
+    }
+
+    /**
+     * 在新key中添加全部元素，完成后原子替换当前过滤器并标记为已初始化，可以重复执行，多个实例同时执行时只有一个实例重建
+     * 已删除集合中的元素不添加，集合中不在values中的元素（已从数据源删除）移出集合
+     * 重建期间对当前过滤器的添加和删除在替换后丢失，数据源应在这些修改生效后读取，
+     * 重建期间删除的元素在下次重建前仍可能判断为存在
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @param values    全部元素
+     * @return 因过滤器已满添加失败的元素数，其他实例正在重建时返回-1
+     */
+    public int rebuild(String filterKey, Collection<String> values) {
+        Assert.notNull(filterKey, "存在缓存中的布谷鸟过滤器的key不能为空");
+        final String lockKey = "{" + filterKey + "}:rebuilding";
+        final Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", REBUILD_LOCK_MILLIS, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return -1;
+        }
+        //与当前过滤器使用相同的hash tag，集群模式下可以rename
+        final String rebuildId = UUID.randomUUID().toString().replace("-", "");
+        final List<String> rebuildKeys = Arrays.asList("{" + filterKey + "}:rebuild:" + rebuildId,
+                "{" + filterKey + "}:rebuild:" + rebuildId + ":count");
+        final String removedKey = removedKey(filterKey);
+        boolean swapped = false;
+        try {
+            final Set<String> removed = stringRedisTemplate.opsForSet().members(removedKey);
+            final Set<String> stale = new HashSet<>(removed);
+            int failed = 0;
+            for (String value : values) {
+                if (removed.contains(value)) {
+                    stale.remove(value);
+                } else if (!add(Arrays.asList(rebuildKeys.get(0), rebuildKeys.get(1), removedKey), value)) {
+                    failed++;
+                }
+            }
+            final List<String> swapKeys = new ArrayList<>(rebuildKeys);
+            swapKeys.addAll(keys(filterKey).subList(0, 2));
+            swapKeys.add(readyKey(filterKey));
+            stringRedisTemplate.execute(SWAP_SCRIPT, swapKeys);
+            swapped = true;
+            if (!stale.isEmpty()) {
+                stringRedisTemplate.opsForSet().remove(removedKey, stale.toArray());
+            }
+            return failed;
+        } finally {
+            if (!swapped) {
+                stringRedisTemplate.delete(rebuildKeys);
+            }
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 过滤器是否已经完成初始化
+     *
+     * @param filterKey 存在缓存中的过滤器的key
+     * @return
+     */
+    public boolean isReady(String filterKey) {
+        final long now = System.currentTimeMillis();
+        final Long checkAt = readyCheckAt.get(filterKey);
+        if (null != checkAt && now < checkAt) {
+            return true;
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(readyKey(filterKey)))) {
+            readyCheckAt.put(filterKey, now + READY_CHECK_MILLIS);
+            return true;
+        }
+        readyCheckAt.remove(filterKey);
+        return false;
+    }
+
+    /**
+     * 未完成初始化时返回true（可能存在）
+     */
+    @Override
+    public boolean mightContain(String filterKey, String value) {
+        Assert.notNull(filterKey, "存在缓存中的布谷鸟过滤器的key不能为空");
+        Assert.notNull(value, "元素不能为空");
+        if (!isReady(filterKey)) {
+            return true;
+        }
+        final int[] location = locate(value);
+        final Long result = stringRedisTemplate.execute(EXISTS_SCRIPT, keys(filterKey).subList(0, 1),
+                String.valueOf(location[0]), String.valueOf(location[1]), String.valueOf(location[2]));
+        return null != result && result == 1;
+    }
+
+    /**
+     * 删除一份指纹并记录到已删除集合，只能删除确实添加过的元素，否则可能删除指纹相同的其他元素
+     * 重复删除（如重试的请求）返回false，不会删除其他元素的指纹
+     */
+    @Override
+    public boolean remove(String filterKey, String value) {
+        Assert.notNull(filterKey, "存在缓存中的布谷鸟过滤器的key不能为空");
+        Assert.notNull(value, "元素不能为空");
+        final int[] location = locate(value);
+        final Long result = stringRedisTemplate.execute(REMOVE_SCRIPT, keys(filterKey),
+                String.valueOf(location[0]), String.valueOf(location[1]), String.valueOf(location[2]), value);
+        return null != result && result == 1;
+    }
+
+    @Override
+    public double fillRate(String filterKey) {
+        final String count = stringRedisTemplate.opsForValue().get(keys(filterKey).get(1));
+        return null == count ? 0 : Double.parseDouble(count) / ((long) numBuckets * SLOTS_PER_BUCKET);
+    }
+
+    /**
+     * 查询时比较两个桶共8个槽位，每个非空槽位误判的概率为1/2^16
+     */
+    @Override
+    public double estimatedFpp(String filterKey) {
+        final double occupiedSlots = 2 * SLOTS_PER_BUCKET * fillRate(filterKey);
+        return 1 - Math.pow(1 - 1.0 / (1 << FINGERPRINT_BITS), occupiedSlots);
+    }
+
+    private boolean add(List<String> keys, String value) {
+        Assert.notNull(value, "元素不能为空");
+        final int[] location = locate(value);
+        final Long result = stringRedisTemplate.execute(ADD_SCRIPT, keys,
+                String.valueOf(location[0]), String.valueOf(location[1]), String.valueOf(location[2]),
+                String.valueOf(numBuckets), String.valueOf(MAX_KICKS), String.valueOf(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE)),
+                value);
+        return null != result && result == 1;
+    }
+
+    /**
+     * 过滤器key、计数key和已删除集合使用相同的hash tag，保证集群模式下在同一个slot
+     */
+    private static List<String> keys(String filterKey) {
+        return Arrays.asList("{" + filterKey + "}", "{" + filterKey + "}:count", removedKey(filterKey));
+    }
+
+    private static String removedKey(String filterKey) {
+        return "{" + filterKey + "}:removed";
+    }
+
+    private static String readyKey(String filterKey) {
+        return "{" + filterKey + "}:ready";
+    }
+}
@@ -0,0 +1,46 @@
+package com.han.limit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 扣减库存接口前置限流，售罄或没有令牌时直接返回，不再访问redis和加锁
+ * 只处理标记了{@link StockLimited}的接口，新增扣减库存的接口只需要加注解
+ */
+@Component
+public class StockLimitInterceptor implements HandlerInterceptor {
+    @Autowired
+    private StockRequestLimiter stockRequestLimiter;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        final StockLimited stockLimited = ((HandlerMethod) handler).getMethodAnnotation(StockLimited.class);
+        if (null == stockLimited) {
+            return true;
+        }
+        if (stockLimited.checkSoldOut() && stockRequestLimiter.isSoldOut()) {
+            reject(response, "商品已售罄");
+            return false;
+        }
+        if (!stockRequestLimiter.tryAcquire()) {
+            reject(response, "哎哟喂，人太多，请稍后再试~~");
+            return false;
+        }
+        return true;
+    }
+
+    private static void reject(HttpServletResponse response, String msg) throws IOException {
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE + ";charset=UTF-8");
+        response.getWriter().write(msg);
+    }
+}
@@ -0,0 +1,21 @@
+package com.han.limit;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标记扣减库存的接口，由{@link StockLimitInterceptor}限流
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StockLimited {
+
+    /**
+     * 是否检查售罄标记，售罄标记只对应RedisController中的单个商品，购物车等多商品接口不检查
+     */
+    boolean checkSoldOut() default true;
+}
@@ -0,0 +1,141 @@
+package com.han.limit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.function.LongSupplier;
+
+/**
+ * 扣减库存接口的集群限流
+ * 1、令牌桶保存在redis中，通过lua脚本原子地生成和申请令牌，所有实例共享同一个速率，
+ * 生成令牌使用redis服务器的时间，实例之间的时钟偏差不影响限流速率
+ * 2、每个实例每次从redis批量预取令牌，大部分请求在本地判断是否放行，只有本地令牌用完时才访问redis
+ * 3、已知库存售罄时，一段时间内所有请求直接在本地拒绝，不再访问redis和加锁
+ */
+@Component
+public class StockRequestLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(StockRequestLimiter.class);
+    private static final String LIMITER_KEY = "product:stock:limiter:100";
+    private static final DefaultRedisScript<Long> LIMITER_SCRIPT = new DefaultRedisScript<>();
+
+    static {
+        LIMITER_SCRIPT.setScriptSource(new ResourceScriptSource(new ClassPathResource("scripts/stock_rate_limiter.lua")));
+        LIMITER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    //集群每秒放行请求数
+    @Value("${stock.limiter.rate:200}")
+    private int rate;
+    //每次从redis预取的令牌数
+    @Value("${stock.limiter.prefetch:10}")
+    private int prefetch;
+    //预取令牌的有效时间（毫秒），过期未用完的令牌作废，避免集群超过限流速率太多
+    @Value("${stock.limiter.permit-ttl-millis:500}")
+    private long permitTtlMillis;
+    //库存售罄后本地直接拒绝的时间（毫秒），过后重新检查库存
+    @Value("${stock.limiter.sold-out-millis:1000}")
+    private long soldOutMillis;
+
+    private int localPermits;
+    private long permitsExpireAt;
+    //redis中没有令牌时，在此时间之前不再访问redis
+    private long retryAt;
+    //是否有线程正在从redis预取令牌
+    private boolean fetching;
+    //redis中生成一个令牌的时间（毫秒）
+    private long retryMillis;
+    private volatile long soldOutUntil;
+    //本地令牌过期、重试等待和售罄使用的时钟
+    LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * 启动时校验限流配置
+     */
+    @PostConstruct
+    public void validate() {
+        Assert.isTrue(rate > 0, "stock.limiter.rate必须大于0，当前【" + rate + "】");
+        Assert.isTrue(prefetch > 0, "stock.limiter.prefetch必须大于0，当前【" + prefetch + "】");
+        Assert.isTrue(permitTtlMillis > 0, "stock.limiter.permit-ttl-millis必须大于0，当前【" + permitTtlMillis + "】");
+        Assert.isTrue(soldOutMillis >= 0, "stock.limiter.sold-out-millis不能小于0，当前【" + soldOutMillis + "】");
+        retryMillis = Math.max(1, 1000 / rate);
+    }
+
+    /**
+     * 申请一个令牌，本地令牌用完时从redis预取一批
+     * 同一时间只有一个线程访问redis，且不持有锁，预取期间其他线程直接拒绝，不等待redis
+     *
+     * @return
+     */
+    public boolean tryAcquire() {
+        final long now = clock.getAsLong();
+        synchronized (this) {
+            if (now >= permitsExpireAt) {
+                localPermits = 0;
+            }
+            if (localPermits > 0) {
+                localPermits--;
+                return true;
+            }
+            if (fetching || now < retryAt) {
+                return false;
+            }
+            fetching = true;
+        }
+        int granted = 0;
+        try {
+            granted = fetchPermits();
+        } finally {
+            synchronized (this) {
+                fetching = false;
+                if (granted > 0) {
+                    //当前请求使用一个
+                    localPermits = granted - 1;
+                    permitsExpireAt = now + permitTtlMillis;
+                } else {
+                    //等待redis中生成一个令牌的时间
+                    retryAt = now + retryMillis;
+                }
+            }
+        }
+        return granted > 0;
+    }
+
+    public boolean isSoldOut() {
+        return clock.getAsLong() < soldOutUntil;
+    }
+
+    /**
+     * 扣减库存时发现库存不足，标记售罄
+     */
+    public void markSoldOut() {
+        soldOutUntil = clock.getAsLong() + soldOutMillis;
+    }
+
+    /**
+     * 从redis预取令牌，失败时返回0
+     *
+     * @return 获得的令牌数
+     */
+    int fetchPermits() {
+        try {
+            final Long granted = stringRedisTemplate.execute(LIMITER_SCRIPT, Collections.singletonList(LIMITER_KEY),
+                    String.valueOf(rate), String.valueOf(rate), String.valueOf(prefetch));
+            return null == granted ? 0 : granted.intValue();
+        } catch (Exception e) {
+            logger.error("从redis获取限流令牌失败", e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.han.service;
+
+import com.han.dto.CartDeductResult;
+import com.han.dto.CartItem;
+import com.han.dto.StockReservationResult;
+
+import java.util.List;
+
+public interface IStockService {
+
+    CartDeductResult deductCart(List<CartItem> items);
+
+    StockReservationResult reserve(List<CartItem> items);
+
+    boolean confirmReservation(String reservationId);
+
+    boolean cancelReservation(String reservationId);
+}
@@ -8,5 +8,15 @@ public interface IUserService {
 
     public User findUserByUserId(Integer userId);
 
+    List<User> findUsersByUserIds(List<Integer> userIds);
+
     List<Integer> findAllUserIds();
+
+    /**
+     * 直接查询数据库判断用户是否存在（不使用快照和合并查询）
+     *
+     * @param userId
+     * @return
+     */
+    boolean existsInDatabase(Integer userId);
 }
@@ -0,0 +1,12 @@
+package com.han.service;
+
+/**
+ * 扣减库存的请求已经发送到redis，但没有拿到结果（超时、中断、连接异常），库存可能已经扣减
+ * 调用方不能直接重试，需要核对库存或订单后再处理
+ */
+public class StockDeductUnknownException extends RuntimeException {
+
+    public StockDeductUnknownException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
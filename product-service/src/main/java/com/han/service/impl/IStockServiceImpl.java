@@ -0,0 +1,364 @@
+package com.han.service.impl;
+
+import com.han.common.batch.RequestBatcher;
+import com.han.dto.CartDeductResult;
+import com.han.dto.CartItem;
+import com.han.dto.CartItemResult;
+import com.han.dto.StockReservationResult;
+import com.han.service.IStockService;
+import com.han.service.StockDeductUnknownException;
+import com.han.trace.RequestTrace;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 购物车批量扣减库存
+ * 一个购物车的所有商品在一次lua脚本调用中检查并扣减，全部成功或全部不扣减，不需要对每个商品加分布式锁
+ * 多个线程同时提交的购物车由合并线程通过lettuce异步命令一次发送（相当于pipeline），每个购物车仍然是独立的原子操作
+ * 预占库存：扣减库存的同时在zset中记录预占及过期时间，用户支付期间不持有锁，确认后删除记录，取消或过期后归还库存
+ * 所有脚本访问的key都通过KEYS传入（归还预占时先读取预占明细中的库存key再传入脚本），
+ * 集群模式下同一个脚本的key必须在同一个slot，因此商品库存key、预占记录和预占明细都使用hash tag {product:stock}，
+ * 全部库存在同一个slot（同一个节点），多个商品才能在一个脚本中原子扣减
+ */
+@Service
+public class IStockServiceImpl implements IStockService {
+    private static final Logger logger = LoggerFactory.getLogger(IStockServiceImpl.class);
+    //库存相关的key共用的hash tag，保证集群模式下在同一个slot
+    private static final String STOCK_HASH_TAG = "{product:stock}";
+    static final String PRODUCT_STOCK_KEY = STOCK_HASH_TAG + ":";
+    //预占记录，score为过期时间
+    static final String RESERVATION_KEY = STOCK_HASH_TAG + ":reservations";
+    //预占明细，库存key -> 数量
+    static final String RESERVATION_ITEMS_KEY = STOCK_HASH_TAG + ":reservation:";
+    //商品id只能是数字，拼接到库存key后不会与预占记录、预占明细等同一hash tag下的其他key冲突
+    private static final Pattern SKU_ID_PATTERN = Pattern.compile("\\d{1,19}");
+    //单个购物车最多的商品数
+    private static final int MAX_CART_ITEMS = 100;
+    //单个pipeline最多合并的购物车数
+    private static final int MAX_BATCH_SIZE = 100;
+    //等待扣减结果的超时时间（毫秒）
+    private static final long DEDUCT_TIMEOUT_MILLIS = 3000;
+    private static final DefaultRedisScript<List> CART_DEDUCT_SCRIPT = script("scripts/stock_cart_deduct.lua", List.class);
+    private static final byte[] CART_DEDUCT_SCRIPT_BYTES = CART_DEDUCT_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+    private static final DefaultRedisScript<List> RESERVE_SCRIPT = script("scripts/stock_reserve.lua", List.class);
+    private static final DefaultRedisScript<Long> CONFIRM_SCRIPT = script("scripts/stock_reservation_confirm.lua", Long.class);
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = script("scripts/stock_reservation_release.lua", Long.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+    //预占有效时间（毫秒）
+    @Value("${stock.reservation.ttl-millis:900000}")
+    private long reservationTtlMillis;
+    //每次最多归还的过期预占数
+    @Value("${stock.reservation.sweep-batch:100}")
+    private int sweepBatch;
+
+    //每次取出队列中所有等待的购物车放到一个pipeline中执行，不额外等待，上一个pipeline执行期间到达的购物车组成下一批
+    private final RequestBatcher<PendingCart, CartDeductResult> cartBatcher = new RequestBatcher<>("stock-cart-deduct",
+            Integer.MAX_VALUE, MAX_BATCH_SIZE, 0, this::dispatch);
+
+    @PostConstruct
+    public void startBatchDeduct() {
+        cartBatcher.start();
+    }
+
+    @PreDestroy
+    public void stopBatchDeduct() {
+        cartBatcher.close();
+    }
+
+    @Override
+    public CartDeductResult deductCart(List<CartItem> items) {
+        final Map<String, Integer> quantities = mergeQuantities(items);
+        final RequestBatcher.Request<PendingCart, CartDeductResult> request = cartBatcher.submit(new PendingCart(quantities));
+        //还没有发送到redis，库存一定没有扣减
+        Assert.state(null != request, "购物车扣减线程已停止");
+        final long start = RequestTrace.stageStart();
+        try {
+            return request.get(DEDUCT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (request.cancel()) {
+                //还在队列中，撤回后不会再执行
+                throw new IllegalStateException("购物车扣减库存超时，未扣减", e);
+            }
+            throw new StockDeductUnknownException("购物车扣减库存超时，扣减结果未知", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.cancel();
+            throw new StockDeductUnknownException("购物车扣减库存被中断，扣减结果未知", e);
+        } catch (ExecutionException e) {
+            throw new StockDeductUnknownException("购物车扣减库存失败，扣减结果未知", e.getCause());
+        } finally {
+            RequestTrace.stageEnd("cartDeduct", start);
+        }
+    }
+
+    @Override
+    public StockReservationResult reserve(List<CartItem> items) {
+        final Map<String, Integer> quantities = mergeQuantities(items);
+        final List<String> skuIds = new ArrayList<>(quantities.keySet());
+        final List<Integer> counts = new ArrayList<>(quantities.values());
+        final String reservationId = UUID.randomUUID().toString().replace("-", "");
+        final long expireTime = System.currentTimeMillis() + reservationTtlMillis;
+        final List<String> keys = new ArrayList<>(skuIds.size() + 2);
+        keys.add(RESERVATION_KEY);
+        keys.add(RESERVATION_ITEMS_KEY + reservationId);
+        final List<String> args = new ArrayList<>(skuIds.size() + 2);
+        args.add(reservationId);
+        args.add(String.valueOf(expireTime));
+        for (int i = 0; i < skuIds.size(); i++) {
+            keys.add(PRODUCT_STOCK_KEY + skuIds.get(i));
+            args.add(String.valueOf(counts.get(i)));
+        }
+        final List<Object> scriptResult = stringRedisTemplate.execute(RESERVE_SCRIPT, keys, args.toArray());
+        final boolean success = ((Long) scriptResult.get(0)) == 1;
+        return new StockReservationResult(success ? reservationId : null, success ? expireTime : null,
+                success, toItemResults(skuIds, counts, scriptResult));
+    }
+
+    @Override
+    public boolean confirmReservation(String reservationId) {
+        Assert.hasText(reservationId, "预占id不能为空");
+        final Long result = stringRedisTemplate.execute(CONFIRM_SCRIPT, reservationKeys(reservationId),
+                reservationId, String.valueOf(System.currentTimeMillis()));
+        return null != result && result == 1;
+    }
+
+    @Override
+    public boolean cancelReservation(String reservationId) {
+        Assert.hasText(reservationId, "预占id不能为空");
+        return release(reservationId, "+inf");
+    }
+
+    /**
+     * 定时归还过期的预占，每次最多取出sweepBatch个过期的预占逐个归还，取满一批时继续下一批
+     * 多个实例同时执行时，脚本原子执行，同一个预占只会归还一次
+     *
+     * @return 本次归还的预占数
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-millis:1000}")
+    public int sweepExpiredReservations() {
+        int total = 0;
+        try {
+            final long now = System.currentTimeMillis();
+            Set<String> expiredIds;
+            int released;
+            do {
+                expiredIds = stringRedisTemplate.opsForZSet().rangeByScore(RESERVATION_KEY, 0, now, 0, sweepBatch);
+                released = 0;
+                for (String reservationId : expiredIds) {
+                    if (release(reservationId, String.valueOf(now))) {
+                        released++;
+                    }
+                }
+                total += released;
+            } while (expiredIds.size() == sweepBatch && released > 0);
+        } catch (Exception e) {
+            logger.error("归还过期预占库存失败", e);
+        }
+        if (total > 0) {
+            logger.info("归还过期预占【{}】个", total);
+        }
+        return total;
+    }
+
+    /**
+     * 一次网络往返中通过EVALSHA执行所有购物车，脚本不在redis中（NOSCRIPT，redis重启或执行了SCRIPT FLUSH）时
+     * 加载脚本后重新执行这些购物车，NOSCRIPT时脚本没有执行，重新执行不会重复扣减
+     */
+    private void dispatch(List<RequestBatcher.Request<PendingCart, CartDeductResult>> batch) {
+        final List<PendingCart> carts = batch.stream().map(RequestBatcher.Request::getItem).collect(Collectors.toList());
+        final List<Object> results;
+        try {
+            results = deductPipelined(carts);
+            final List<Integer> noScript = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                if (isNoScriptError(results.get(i))) {
+                    noScript.add(i);
+                }
+            }
+            if (!noScript.isEmpty()) {
+                stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptLoad(CART_DEDUCT_SCRIPT_BYTES));
+                final List<Object> retried = deductPipelined(noScript.stream().map(carts::get).collect(Collectors.toList()));
+                for (int i = 0; i < noScript.size(); i++) {
+                    results.set(noScript.get(i), i < retried.size() ? retried.get(i) : null);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("【{}】个购物车扣减库存失败", batch.size(), e);
+            batch.forEach(request -> request.fail(e));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            final RequestBatcher.Request<PendingCart, CartDeductResult> request = batch.get(i);
+            final PendingCart pendingCart = request.getItem();
+            final Object result = i < results.size() ? results.get(i) : null;
+            if (result instanceof List) {
+                request.complete(pendingCart.toResult((List<Object>) result));
+            } else {
+                logger.error("购物车【{}】扣减库存失败【{}】", pendingCart.skuIds, result);
+                request.fail(result instanceof Throwable
+                        ? (Throwable) result : new IllegalStateException("购物车扣减库存结果异常【" + result + "】"));
+            }
+        }
+    }
+
+    /**
+     * 通过lettuce的异步连接连续发送所有购物车的EVALSHA后再等待结果，与pipeline一样只需要一次网络往返
+     * spring的pipeline中任意一条命令失败时会丢弃所有结果，无法区分哪些购物车已经扣减，因此直接使用异步命令逐个获取结果
+     *
+     * @return 与carts一一对应的结果，执行失败的购物车对应异常
+     */
+    private List<Object> deductPipelined(List<PendingCart> carts) {
+        return stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            final RedisClusterAsyncCommands<byte[], byte[]> commands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            final List<RedisFuture<List<Object>>> futures = new ArrayList<>(carts.size());
+            for (PendingCart pendingCart : carts) {
+                futures.add(commands.evalsha(CART_DEDUCT_SCRIPT.getSha1(), ScriptOutputType.MULTI, pendingCart.keys(), pendingCart.args()));
+            }
+            final List<Object> results = new ArrayList<>(carts.size());
+            for (RedisFuture<List<Object>> future : futures) {
+                try {
+                    results.add(future.get(DEDUCT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+                } catch (ExecutionException e) {
+                    results.add(e.getCause());
+                } catch (TimeoutException e) {
+                    results.add(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(e);
+                }
+            }
+            return results;
+        });
+    }
+
+    private static boolean isNoScriptError(Object result) {
+        if (!(result instanceof Throwable)) {
+            return false;
+        }
+        final String message = NestedExceptionUtils.getMostSpecificCause((Throwable) result).getMessage();
+        return null != message && message.contains("NOSCRIPT");
+    }
+
+    private static <T> DefaultRedisScript<T> script(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    /**
+     * 校验购物车，同一个商品合并数量
+     */
+    private static Map<String, Integer> mergeQuantities(List<CartItem> items) {
+        Assert.notEmpty(items, "购物车不能为空");
+        final Map<String, Integer> quantities = new LinkedHashMap<>();
+        for (CartItem item : items) {
+            Assert.hasText(item.getSkuId(), "商品id不能为空");
+            Assert.isTrue(SKU_ID_PATTERN.matcher(item.getSkuId()).matches(), "商品id【" + item.getSkuId() + "】必须是数字");
+            Assert.isTrue(null != item.getQuantity() && item.getQuantity() > 0, "商品【" + item.getSkuId() + "】数量必须大于0");
+            quantities.merge(item.getSkuId(), item.getQuantity(), Integer::sum);
+        }
+        Assert.isTrue(quantities.size() <= MAX_CART_ITEMS, "购物车最多【" + MAX_CART_ITEMS + "】个商品");
+        return quantities;
+    }
+
+    /**
+     * 脚本返回：{是否成功, 商品1库存, 商品2库存...}
+     */
+    private static List<CartItemResult> toItemResults(List<String> skuIds, List<Integer> quantities, List<Object> scriptResult) {
+        final boolean success = ((Long) scriptResult.get(0)) == 1;
+        final List<CartItemResult> items = new ArrayList<>(skuIds.size());
+        for (int i = 0; i < skuIds.size(); i++) {
+            final Long stock = (Long) scriptResult.get(i + 1);
+            final Integer quantity = quantities.get(i);
+            items.add(new CartItemResult(skuIds.get(i), quantity, success || stock >= quantity, stock));
+        }
+        return items;
+    }
+
+    /**
+     * 读取预占明细中的库存key，与预占key一起传入脚本归还库存
+     *
+     * @param reservationId
+     * @param maxExpireTime 只归还过期时间不晚于此的预占，取消时为+inf
+     * @return
+     */
+    private boolean release(String reservationId, String maxExpireTime) {
+        final List<String> keys = new ArrayList<>(reservationKeys(reservationId));
+        for (Object stockKey : stringRedisTemplate.opsForHash().keys(RESERVATION_ITEMS_KEY + reservationId)) {
+            keys.add((String) stockKey);
+        }
+        final Long result = stringRedisTemplate.execute(RELEASE_SCRIPT, keys, reservationId, maxExpireTime);
+        if (null != result && result == -1) {
+            logger.error("预占【{}】明细与库存key不一致，未归还", reservationId);
+        }
+        return null != result && result == 1;
+    }
+
+    private static List<String> reservationKeys(String reservationId) {
+        return Arrays.asList(RESERVATION_KEY, RESERVATION_ITEMS_KEY + reservationId);
+    }
+
+    private static class PendingCart {
+        private final List<String> skuIds;
+        private final List<Integer> quantities;
+
+        private PendingCart(Map<String, Integer> quantities) {
+            this.skuIds = new ArrayList<>(quantities.keySet());
+            this.quantities = new ArrayList<>(quantities.values());
+        }
+
+        private byte[][] keys() {
+            final byte[][] keys = new byte[skuIds.size()][];
+            for (int i = 0; i < skuIds.size(); i++) {
+                keys[i] = (PRODUCT_STOCK_KEY + skuIds.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            return keys;
+        }
+
+        private byte[][] args() {
+            final byte[][] args = new byte[quantities.size()][];
+            for (int i = 0; i < quantities.size(); i++) {
+                args[i] = String.valueOf(quantities.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            return args;
+        }
+
+        private CartDeductResult toResult(List<Object> scriptResult) {
+            final boolean success = ((Long) scriptResult.get(0)) == 1;
+            return new CartDeductResult(success, toItemResults(skuIds, quantities, scriptResult));
+        }
+    }
+}
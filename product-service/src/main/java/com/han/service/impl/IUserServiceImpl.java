@@ -1,32 +1,169 @@
 package com.han.service.impl;
 
 import com.alibaba.fastjson.JSONObject;
+import com.han.common.batch.RequestBatcher;
 import com.han.dao.IUserDao;
 import com.han.entity.User;
 import com.han.service.IUserService;
+import com.han.snapshot.UserSnapshotManager;
+import com.han.trace.RequestTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.util.CollectionUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 public class IUserServiceImpl implements IUserService {
     private static final Logger logger = LoggerFactory.getLogger(IUserServiceImpl.class);
+    //合并查询的时间窗口（毫秒）
+    private static final long BATCH_WINDOW_MILLIS = 5;
+    //单次in查询最多合并的用户数
+    private static final int MAX_BATCH_SIZE = 100;
+    //等待合并查询结果的超时时间（毫秒），超时时还没有开始查询的请求撤回后直接查询数据库
+    private static final long LOAD_TIMEOUT_MILLIS = 1000;
+    //最多等待合并查询的请求数，超过时直接查询数据库，避免数据库变慢时队列无限堆积
+    private static final int MAX_PENDING_LOADS = 1000;
     @Autowired
     private IUserDao userDao;
+    @Autowired
+    private UserSnapshotManager userSnapshotManager;
+
+    private final RequestBatcher<Integer, User> userBatcher = new RequestBatcher<>("user-batch-loader",
+            MAX_PENDING_LOADS, MAX_BATCH_SIZE, BATCH_WINDOW_MILLIS,
+            batch -> RequestBatcher.completeByKey(batch, this::findUsersGroupById));
+
+    @PostConstruct
+    public void startBatchLoader() {
+        userBatcher.start();
+    }
+
+    @PreDestroy
+    public void stopBatchLoader() {
+        userBatcher.close();
+    }
 
     @Override
     public User findUserByUserId(Integer userId) {
-        logger.info("查询用户【{}】数据", userId);
-        final User user = userDao.getByUserId(userId);
-        logger.info("查询数据库用户数据【{}】", JSONObject.toJSONString(user));
+        final User user = loadUser(userId);
+        //只在debug级别序列化用户数据，避免每次查询都做json序列化
+        if (logger.isDebugEnabled()) {
+            logger.debug("查询用户【{}】数据【{}】", userId, JSONObject.toJSONString(user));
+        }
         return user;
     }
 
+    @Override
+    public List<User> findUsersByUserIds(List<Integer> userIds) {
+        if (CollectionUtils.isEmpty(userIds)) {
+            return Collections.emptyList();
+        }
+        return userDao.findByUserIds(new LinkedHashSet<>(userIds));
+    }
+
     @Override
     public List<Integer> findAllUserIds() {
         return userDao.findAllUserIds();
     }
+
+    @Override
+    public boolean existsInDatabase(Integer userId) {
+        return null != userId && null != userDao.getByUserId(userId);
+    }
+
+    /**
+     * 启动预热期内优先从本地用户快照获取，之后只在查询数据库失败时使用快照（快照数据最多延迟一个刷新周期）
+     * 查询数据库时放入队列，由合并线程在时间窗口内与其他线程的查询一起通过一次in查询获取
+     * 合并线程不可用、队列已满或等待超时且还没有开始查询时直接查询数据库；已经开始查询时只等待结果，不重复查询
+     *
+     * @param userId
+     * @return
+     */
+    private User loadUser(Integer userId) {
+        if (null == userId) {
+            return null;
+        }
+        if (userSnapshotManager.isWarmingUp()) {
+            final User snapshotUser = getFromSnapshot(userId);
+            if (null != snapshotUser) {
+                return snapshotUser;
+            }
+        }
+        final long start = RequestTrace.stageStart();
+        try {
+            return loadUserFromDatabase(userId);
+        } catch (RuntimeException e) {
+            final User snapshotUser = getFromSnapshot(userId);
+            if (null == snapshotUser) {
+                throw e;
+            }
+            logger.warn("查询用户【{}】数据失败，使用本地快照中的数据", userId, e);
+            return snapshotUser;
+        } finally {
+            RequestTrace.stageEnd("mysql", start);
+        }
+    }
+
+    private User getFromSnapshot(Integer userId) {
+        final long start = RequestTrace.stageStart();
+        try {
+            return userSnapshotManager.get(userId);
+        } finally {
+            RequestTrace.stageEnd("snapshot", start);
+        }
+    }
+
+    private User loadUserFromDatabase(Integer userId) {
+        final RequestBatcher.Request<Integer, User> request = userBatcher.submit(userId);
+        if (null == request) {
+            //合并线程已停止或等待的请求已满
+            return userDao.getByUserId(userId);
+        }
+        try {
+            try {
+                return request.get(LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (request.cancel()) {
+                    logger.warn("等待合并查询用户【{}】数据超时，直接查询数据库", userId);
+                    return userDao.getByUserId(userId);
+                }
+                //已经在in查询中，继续等待这次查询的结果，不重复查询数据库
+                return request.get(LOAD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("查询用户【" + userId + "】数据被中断", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("查询用户【" + userId + "】数据超时", e);
+        } catch (ExecutionException e) {
+            logger.error("合并查询用户【{}】数据失败，直接查询数据库", userId, e);
+            return userDao.getByUserId(userId);
+        }
+    }
+
+    /**
+     * 执行一次in查询（同一个userId的多个请求共享一条结果）
+     *
+     * @param userIds
+     * @return
+     */
+    private Map<Integer, User> findUsersGroupById(Set<Integer> userIds) {
+        final Map<Integer, User> users = new HashMap<>();
+        for (User user : userDao.findByUserIds(userIds)) {
+            users.put(user.getUserId(), user);
+        }
+        return users;
+    }
 }
@@ -0,0 +1,155 @@
+package com.han.snapshot;
+
+import com.han.common.snapshot.UserSnapshot;
+import com.han.common.snapshot.UserSnapshotWriter;
+import com.han.dao.IUserDao;
+import com.han.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 本地用户快照（内存映射文件）
+ * 启动时直接映射上次生成的快照文件，启动后warmup-millis内（预热期）redis未命中时先走快照再查mysql，
+ * 预热期后只在查询mysql失败时使用快照
+ * 快照定时从数据库分页导出，数据最多延迟一个刷新周期（包括已删除、已修改的用户），因此预热期不宜过长，为0时只作为mysql失败时的降级
+ * 快照中只保存用户名，不保存密码，从快照中查询到的用户密码为null
+ */
+@Component
+public class UserSnapshotManager {
+    private static final Logger logger = LoggerFactory.getLogger(UserSnapshotManager.class);
+    private static final int PAGE_SIZE = 1000;
+    @Value("${user.snapshot.path:data/user.snapshot}")
+    private String snapshotPath;
+    //启动后优先使用快照的时间（毫秒）
+    @Value("${user.snapshot.warmup-millis:300000}")
+    private long warmupMillis;
+    @Autowired
+    private IUserDao userDao;
+
+    private volatile UserSnapshot snapshot;
+    private long warmupUntil;
+
+    @PostConstruct
+    public void load() {
+        warmupUntil = System.currentTimeMillis() + warmupMillis;
+        final Path path = Paths.get(snapshotPath);
+        if (!Files.exists(path)) {
+            logger.info("用户快照【{}】不存在，启动完成后生成", path);
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            snapshot = UserSnapshot.open(path);
+            logger.info("加载用户快照【{}】成功，用户数【{}】，耗时【{}】ms", path, snapshot.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.error("加载用户快照【{}】失败", path, e);
+        }
+    }
+
+    /**
+     * 启动时没有可用的快照（文件不存在或加载失败）时，启动完成后立即生成，不等待第一个刷新周期
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildIfMissing() {
+        if (null == snapshot) {
+            refresh();
+        }
+    }
+
+    /**
+     * 从数据库分页导出用户信息生成新快照，并切换到新快照
+     */
+    @Scheduled(initialDelayString = "${user.snapshot.refresh-millis:600000}", fixedDelayString = "${user.snapshot.refresh-millis:600000}")
+    public synchronized void refresh() {
+        final Path path = Paths.get(snapshotPath);
+        final long start = System.currentTimeMillis();
+        try (UserSnapshotWriter writer = new UserSnapshotWriter(path)) {
+            Integer lastUserId = Integer.MIN_VALUE;
+            List<User> users;
+            do {
+                users = userDao.findUsersAfter(lastUserId, PAGE_SIZE);
+                for (User user : users) {
+                    writer.append(user.getUserId(), encode(user));
+                    lastUserId = user.getUserId();
+                }
+            } while (users.size() == PAGE_SIZE);
+            writer.commit();
+            snapshot = UserSnapshot.open(path);
+            logger.info("生成用户快照【{}】成功，用户数【{}】，耗时【{}】ms", path, writer.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.error("生成用户快照【{}】失败", path, e);
+        }
+    }
+
+    /**
+     * 是否在启动预热期内
+     *
+     * @return
+     */
+    public boolean isWarmingUp() {
+        return null != snapshot && System.currentTimeMillis() < warmupUntil;
+    }
+
+    /**
+     * 从快照中查询用户信息，快照未加载或不存在该用户时返回null
+     *
+     * @param userId
+     * @return
+     */
+    public User get(Integer userId) {
+        final UserSnapshot current = snapshot;
+        if (null == current || null == userId) {
+            return null;
+        }
+        final byte[] record = current.get(userId);
+        if (null == record) {
+            return null;
+        }
+        try {
+            return decode(userId, record);
+        } catch (IOException e) {
+            logger.error("解析用户快照中用户【{}】数据失败", userId, e);
+            return null;
+        }
+    }
+
+    static byte[] encode(User user) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeNullable(out, user.getUserName());
+        return bytes.toByteArray();
+    }
+
+    static User decode(Integer userId, byte[] record) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return new User(userId, readNullable(in), null);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(null != value);
+        if (null != value) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,108 @@
+package com.han.trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单次请求各阶段耗时（布隆过滤器、redis读写、锁等待、mysql等）
+ * 请求开始时绑定到当前线程，各阶段通过stageStart/stageEnd记录耗时，当前线程没有跟踪时不计时
+ * 请求结束后不再修改，可交给{@link SlowRequestRecorder}保存
+ */
+public final class RequestTrace {
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+    private static final int MAX_STAGES = 16;
+
+    private final String uri;
+    private final long startTime;
+    private final long startNanos;
+    private final String[] stageNames = new String[MAX_STAGES];
+    private final long[] stageNanos = new long[MAX_STAGES];
+    private int stageCount;
+    private long totalNanos;
+
+    private RequestTrace(String uri) {
+        this.uri = uri;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 开始跟踪当前线程的请求
+     *
+     * @param uri
+     */
+    public static void begin(String uri) {
+        CURRENT.set(new RequestTrace(uri));
+    }
+
+    /**
+     * 结束跟踪当前线程的请求
+     *
+     * @return 当前线程没有跟踪时返回null
+     */
+    public static RequestTrace end() {
+        final RequestTrace trace = CURRENT.get();
+        if (null == trace) {
+            return null;
+        }
+        CURRENT.remove();
+        trace.totalNanos = System.nanoTime() - trace.startNanos;
+        return trace;
+    }
+
+    /**
+     * 阶段开始
+     *
+     * @return 阶段开始时间，当前线程没有跟踪时返回0
+     */
+    public static long stageStart() {
+        return null == CURRENT.get() ? 0 : System.nanoTime();
+    }
+
+    /**
+     * 阶段结束，记录从stageStart开始的耗时
+     *
+     * @param stage
+     * @param stageStart
+     */
+    public static void stageEnd(String stage, long stageStart) {
+        if (0 == stageStart) {
+            return;
+        }
+        final RequestTrace trace = CURRENT.get();
+        if (null != trace && trace.stageCount < MAX_STAGES) {
+            trace.stageNames[trace.stageCount] = stage;
+            trace.stageNanos[trace.stageCount] = System.nanoTime() - stageStart;
+            trace.stageCount++;
+        }
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getTotalMicros() {
+        return totalNanos / 1000;
+    }
+
+    /**
+     * 各阶段耗时（微秒），同名阶段累加
+     *
+     * @return
+     */
+    public Map<String, Long> getStageMicros() {
+        final Map<String, Long> stages = new LinkedHashMap<>();
+        for (int i = 0; i < stageCount; i++) {
+            stages.merge(stageNames[i], stageNanos[i] / 1000, Long::sum);
+        }
+        return stages;
+    }
+}
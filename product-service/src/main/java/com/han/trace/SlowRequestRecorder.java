@@ -0,0 +1,55 @@
+package com.han.trace;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 慢请求环形缓冲区
+ * 只保存耗时超过阈值的请求，写入时只做一次自增和一次数组写，不加锁，新的请求覆盖最旧的请求
+ */
+@Component
+public class SlowRequestRecorder {
+    //环形缓冲区大小，必须是2的幂
+    private static final int RING_SIZE = 256;
+
+    private final AtomicReferenceArray<RequestTrace> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private final AtomicLong cursor = new AtomicLong();
+    private final long thresholdNanos;
+
+    public SlowRequestRecorder(@Value("${trace.slow-threshold-millis:200}") long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    public void record(RequestTrace trace) {
+        if (trace.getTotalNanos() < thresholdNanos) {
+            return;
+        }
+        ring.set((int) (cursor.getAndIncrement() & (RING_SIZE - 1)), trace);
+    }
+
+    /**
+     * 最近的慢请求中耗时最长的limit个
+     *
+     * @param limit 小于0时按0处理，超过环形缓冲区大小时按缓冲区大小处理
+     * @return
+     */
+    public List<RequestTrace> slowest(int limit) {
+        limit = Math.max(0, Math.min(limit, RING_SIZE));
+        final List<RequestTrace> traces = new ArrayList<>(RING_SIZE);
+        for (int i = 0; i < RING_SIZE; i++) {
+            final RequestTrace trace = ring.get(i);
+            if (null != trace) {
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingLong(RequestTrace::getTotalNanos).reversed());
+        return traces.size() > limit ? new ArrayList<>(traces.subList(0, limit)) : traces;
+    }
+}
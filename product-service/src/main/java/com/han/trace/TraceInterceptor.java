@@ -0,0 +1,32 @@
+package com.han.trace;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 请求开始时开启耗时跟踪，结束后交给慢请求记录器
+ */
+@Component
+public class TraceInterceptor implements HandlerInterceptor {
+    @Autowired
+    private SlowRequestRecorder slowRequestRecorder;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        final String queryString = request.getQueryString();
+        RequestTrace.begin(null == queryString ? request.getRequestURI() : request.getRequestURI() + "?" + queryString);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        final RequestTrace trace = RequestTrace.end();
+        if (null != trace) {
+            slowRequestRecorder.record(trace);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+-- 布谷鸟过滤器添加元素
+-- 过滤器保存在一个string中，每个桶4个槽位，每个槽位保存16位指纹，0表示空槽位
+-- 不检查指纹是否已存在：指纹和桶都相同的不同元素各自保存一份，删除其中一个时另一个仍然存在
+-- 因此同一个元素只能添加一次，重复添加需要重建过滤器；添加成功后从已删除集合中移除，之后可以再次删除
+-- KEYS[1] 过滤器key KEYS[2] 元素计数key KEYS[3] 已删除元素set
+-- ARGV[1] 指纹 ARGV[2] 桶下标1 ARGV[3] 桶下标2 ARGV[4] 桶数量（2的幂） ARGV[5] 最大踢出次数 ARGV[6] 随机数 ARGV[7] 元素
+-- 返回：1 添加成功 0 过滤器已满
+local fp = tonumber(ARGV[1])
+local i1 = tonumber(ARGV[2])
+local i2 = tonumber(ARGV[3])
+local numBuckets = tonumber(ARGV[4])
+local maxKicks = tonumber(ARGV[5])
+local random = tonumber(ARGV[6])
+local SLOTS = 4
+
+-- 与RedisCuckooFilter.altIndex一致
+local function altIndex(i, f)
+    return bit.band(bit.bxor(i, (f * 1540483477) % 4294967296), numBuckets - 1)
+end
+
+local function getBucket(b)
+    local base = b * SLOTS
+    return redis.call('BITFIELD', KEYS[1], 'GET', 'u16', '#' .. base, 'GET', 'u16', '#' .. (base + 1),
+        'GET', 'u16', '#' .. (base + 2), 'GET', 'u16', '#' .. (base + 3))
+end
+
+local function insert(b, bucket, f)
+    for s = 1, SLOTS do
+        if bucket[s] == 0 then
+            redis.call('BITFIELD', KEYS[1], 'SET', 'u16', '#' .. (b * SLOTS + s - 1), f)
+            return true
+        end
+    end
+    return false
+end
+
+if insert(i1, getBucket(i1), fp) or insert(i2, getBucket(i2), fp) then
+    redis.call('INCR', KEYS[2])
+    redis.call('SREM', KEYS[3], ARGV[7])
+    return 1
+end
+
+-- 两个桶都满了，随机踢出一个指纹放到它的另一个桶中，记录被替换的槽位，失败时按相反顺序恢复
+local b = (random % 2 == 0) and i1 or i2
+local f = fp
+local replaced = {}
+for n = 1, maxKicks do
+    local offset = '#' .. (b * SLOTS + (random + n) % SLOTS)
+    local victim = redis.call('BITFIELD', KEYS[1], 'SET', 'u16', offset, f)[1]
+    replaced[n] = { offset, victim }
+    f = victim
+    b = altIndex(b, f)
+    if insert(b, getBucket(b), f) then
+        redis.call('INCR', KEYS[2])
+        redis.call('SREM', KEYS[3], ARGV[7])
+        return 1
+    end
+end
+for n = #replaced, 1, -1 do
+    redis.call('BITFIELD', KEYS[1], 'SET', 'u16', replaced[n][1], replaced[n][2])
+end
+return 0
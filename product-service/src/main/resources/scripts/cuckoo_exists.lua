@@ -0,0 +1,17 @@
+-- 布谷鸟过滤器判断元素是否可能存在
+-- KEYS[1] 过滤器key
+-- ARGV[1] 指纹 ARGV[2] 桶下标1 ARGV[3] 桶下标2
+-- 返回：1 可能存在 0 一定不存在
+local fp = tonumber(ARGV[1])
+local SLOTS = 4
+for i = 2, 3 do
+    local base = tonumber(ARGV[i]) * SLOTS
+    local bucket = redis.call('BITFIELD', KEYS[1], 'GET', 'u16', '#' .. base, 'GET', 'u16', '#' .. (base + 1),
+        'GET', 'u16', '#' .. (base + 2), 'GET', 'u16', '#' .. (base + 3))
+    for s = 1, SLOTS do
+        if bucket[s] == fp then
+            return 1
+        end
+    end
+end
+return 0
@@ -0,0 +1,25 @@
+-- 布谷鸟过滤器删除元素，只删除一份指纹（指纹相同的其他元素各自保存了一份）
+-- 只能删除确实添加过的元素，否则可能删除其他元素的指纹导致误判为不存在
+-- 删除过的元素记录在已删除集合中，重复删除时不再删除指纹（可能属于指纹相同的其他元素）
+-- KEYS[1] 过滤器key KEYS[2] 元素计数key KEYS[3] 已删除元素set
+-- ARGV[1] 指纹 ARGV[2] 桶下标1 ARGV[3] 桶下标2 ARGV[4] 元素
+-- 返回：1 删除成功 0 不存在或已经删除过
+if redis.call('SISMEMBER', KEYS[3], ARGV[4]) == 1 then
+    return 0
+end
+redis.call('SADD', KEYS[3], ARGV[4])
+local fp = tonumber(ARGV[1])
+local SLOTS = 4
+for i = 2, 3 do
+    local base = tonumber(ARGV[i]) * SLOTS
+    local bucket = redis.call('BITFIELD', KEYS[1], 'GET', 'u16', '#' .. base, 'GET', 'u16', '#' .. (base + 1),
+        'GET', 'u16', '#' .. (base + 2), 'GET', 'u16', '#' .. (base + 3))
+    for s = 1, SLOTS do
+        if bucket[s] == fp then
+            redis.call('BITFIELD', KEYS[1], 'SET', 'u16', '#' .. (base + s - 1), 0)
+            redis.call('DECR', KEYS[2])
+            return 1
+        end
+    end
+end
+return 0
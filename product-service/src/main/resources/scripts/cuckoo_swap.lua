@@ -0,0 +1,12 @@
+-- 用重建好的布谷鸟过滤器替换当前过滤器，过滤器和计数同时替换，并标记为已初始化
+-- KEYS[1] 新过滤器key KEYS[2] 新计数key KEYS[3] 过滤器key KEYS[4] 计数key KEYS[5] 已初始化标记key
+-- 返回：1
+for i = 1, 2 do
+    if redis.call('EXISTS', KEYS[i]) == 1 then
+        redis.call('RENAME', KEYS[i], KEYS[i + 2])
+    else
+        redis.call('DEL', KEYS[i + 2])
+    end
+end
+redis.call('SET', KEYS[5], '1')
+return 1
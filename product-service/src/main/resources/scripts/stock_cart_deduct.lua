@@ -0,0 +1,19 @@
+-- 购物车批量扣减库存，全部商品库存充足时才扣减，否则都不扣减
+-- KEYS 商品库存key ARGV 对应的扣减数量
+-- 返回：{是否成功(1/0), 商品1库存, 商品2库存...}，成功时为扣减后的库存，失败时为当前库存
+local stocks = {}
+local success = 1
+for i = 1, #KEYS do
+    local stock = tonumber(redis.call('GET', KEYS[i]) or '0')
+    stocks[i] = stock
+    if stock < tonumber(ARGV[i]) then
+        success = 0
+    end
+end
+if success == 1 then
+    for i = 1, #KEYS do
+        stocks[i] = redis.call('DECRBY', KEYS[i], ARGV[i])
+    end
+end
+table.insert(stocks, 1, success)
+return stocks
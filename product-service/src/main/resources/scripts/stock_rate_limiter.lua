@@ -0,0 +1,29 @@
+-- 令牌桶限流，一次申请多个令牌，返回实际获得的令牌数
+-- KEYS[1] 令牌桶key
+-- ARGV[1] 每秒生成令牌数 ARGV[2] 桶容量 ARGV[3] 申请令牌数
+-- 使用redis服务器的时间，不使用各实例的本地时间，实例之间的时钟偏差不影响限流速率
+-- redis 5之前脚本调用TIME后不能再写入，需要先开启按效果复制，redis 5及以上默认按效果复制
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if tokens == nil or ts == nil then
+    tokens = capacity
+    ts = now
+end
+if now > ts then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+local granted = math.min(requested, math.floor(tokens))
+tokens = tokens - granted
+redis.call('hmset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts))
+redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000)
+return granted
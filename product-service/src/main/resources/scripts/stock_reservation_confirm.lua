@@ -0,0 +1,11 @@
+-- 确认预占（支付成功），删除预占记录，库存不再归还
+-- KEYS[1] 预占记录zset KEYS[2] 预占明细hash
+-- ARGV[1] 预占id ARGV[2] 当前时间（毫秒）
+-- 返回：1 确认成功 0 预占不存在或已过期
+local expireAt = redis.call('ZSCORE', KEYS[1], ARGV[1])
+if not expireAt or tonumber(expireAt) < tonumber(ARGV[2]) then
+    return 0
+end
+redis.call('ZREM', KEYS[1], ARGV[1])
+redis.call('DEL', KEYS[2])
+return 1
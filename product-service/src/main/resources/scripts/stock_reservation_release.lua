@@ -0,0 +1,27 @@
+-- 归还预占的库存并删除预占记录（取消预占或过期归还）
+-- KEYS[1] 预占记录zset KEYS[2] 预占明细hash（库存key -> 数量） KEYS[3...] 预占明细中的全部库存key
+-- ARGV[1] 预占id ARGV[2] 过期时间上限（毫秒），只归还过期时间不晚于此的预占，取消时为+inf
+-- 返回：1 归还成功 0 预占不存在（已确认、已取消或已归还）或未过期 -1 传入的库存key与预占明细不一致
+local expireAt = redis.call('ZSCORE', KEYS[1], ARGV[1])
+if not expireAt or (ARGV[2] ~= '+inf' and tonumber(expireAt) > tonumber(ARGV[2])) then
+    return 0
+end
+local items = redis.call('HGETALL', KEYS[2])
+if #items / 2 ~= #KEYS - 2 then
+    return -1
+end
+local quantities = {}
+for i = 1, #items, 2 do
+    quantities[items[i]] = items[i + 1]
+end
+for i = 3, #KEYS do
+    if not quantities[KEYS[i]] then
+        return -1
+    end
+end
+for i = 3, #KEYS do
+    redis.call('INCRBY', KEYS[i], quantities[KEYS[i]])
+end
+redis.call('ZREM', KEYS[1], ARGV[1])
+redis.call('DEL', KEYS[2])
+return 1
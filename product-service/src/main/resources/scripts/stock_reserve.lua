@@ -0,0 +1,23 @@
+-- 预占库存，全部商品库存充足时才扣减并记录预占，否则都不扣减
+-- KEYS[1] 预占记录zset（score为过期时间） KEYS[2] 预占明细hash（库存key -> 数量） KEYS[3...] 商品库存key
+-- ARGV[1] 预占id ARGV[2] 过期时间（毫秒） ARGV[3...] 对应的预占数量
+-- 返回：{是否成功(1/0), 商品1库存, 商品2库存...}，成功时为扣减后的库存，失败时为当前库存
+local n = #KEYS - 2
+local stocks = {}
+local success = 1
+for i = 1, n do
+    local stock = tonumber(redis.call('GET', KEYS[i + 2]) or '0')
+    stocks[i] = stock
+    if stock < tonumber(ARGV[i + 2]) then
+        success = 0
+    end
+end
+if success == 1 then
+    for i = 1, n do
+        stocks[i] = redis.call('DECRBY', KEYS[i + 2], ARGV[i + 2])
+        redis.call('HSET', KEYS[2], KEYS[i + 2], ARGV[i + 2])
+    end
+    redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])
+end
+table.insert(stocks, 1, success)
+return stocks
@@ -0,0 +1,26 @@
+package com.han.common;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultTest {
+
+    @Test
+    public void successJsonWrapsSerializedData() throws IOException {
+        final byte[] dataJson = "{\"userId\":1,\"userName\":\"韩\"}".getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Result.writeSuccessJson(outputStream, dataJson);
+        assertEquals(Result.successJsonLength(dataJson), outputStream.size());
+
+        final JSONObject json = JSON.parseObject(new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+        final JSONObject expected = (JSONObject) JSON.toJSON(Result.SUCCESS(JSON.parseObject(dataJson, JSONObject.class)));
+        assertEquals(expected, json);
+    }
+}
@@ -0,0 +1,285 @@
+package com.han.controller;
+
+import com.han.dto.CartDeductResult;
+import com.han.dto.CartItem;
+import com.han.limit.StockRequestLimiter;
+import com.han.lock.RedisLock;
+import com.han.service.impl.IStockServiceImpl;
+import com.han.trace.RequestTrace;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.redisson.Redisson;
+import org.redisson.config.Config;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ReflectionUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RedisController各种扣减库存方式的并发压测及超卖校验
+ * 不匹配surefire默认的测试类名，需要单独执行：
+ * mvn -pl product-service test -Dtest=LockStrategyBenchmark -Dbenchmark.threads=1,8,32 -Dbenchmark.stock=100 -Dbenchmark.requests=1000
+ * 可选参数：benchmark.strategies 只执行指定的方式（逗号分隔），benchmark.redis.port 嵌入式redis端口，
+ * benchmark.redis.external=true 使用已启动的redis（benchmark.redis.host）
+ * 每种方式执行前清空redis并设置库存，输出吞吐量、耗时分位数、锁等待分布以及超卖/少卖数量
+ */
+public class LockStrategyBenchmark {
+    private static final String PRODUCT_STOCK_KEY = "{product:stock}:100";
+    //被认为并发安全的方式，不允许超卖
+    private static final List<String> SAFE_STRATEGIES = Arrays.asList("deductStock4", "deductCartStock");
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate stringRedisTemplate;
+    private static Redisson redisson;
+    private static IStockServiceImpl stockService;
+    private static CountingRedisController redisController;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        final String host = System.getProperty("benchmark.redis.host", "127.0.0.1");
+        final int port = Integer.getInteger("benchmark.redis.port", 16379);
+        if (!Boolean.getBoolean("benchmark.redis.external")) {
+            redisServer = RedisServer.newRedisServer().port(port).setting("maxmemory 128M").build();
+            redisServer.start();
+        }
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(host, port));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+
+        Config config = new Config();
+        config.useSingleServer().setAddress("redis://" + host + ":" + port).setDatabase(0);
+        redisson = (Redisson) Redisson.create(config);
+
+        final RedisLock redisLock = new RedisLock();
+        inject(redisLock, "redisTemplate", stringRedisTemplate);
+        stockService = new IStockServiceImpl();
+        inject(stockService, "stringRedisTemplate", stringRedisTemplate);
+        stockService.startBatchDeduct();
+
+        redisController = new CountingRedisController();
+        redisController.stringRedisTemplate = stringRedisTemplate;
+        redisController.redisLock = redisLock;
+        redisController.redisson = redisson;
+        redisController.stockRequestLimiter = new StockRequestLimiter();
+        redisController.stockService = stockService;
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        if (null != stockService) {
+            stockService.stopBatchDeduct();
+        }
+        if (null != redisson) {
+            redisson.shutdown();
+        }
+        if (null != connectionFactory) {
+            connectionFactory.destroy();
+        }
+        if (null != redisServer) {
+            redisServer.stop();
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        final int stock = Integer.getInteger("benchmark.stock", 100);
+        final int requests = Integer.getInteger("benchmark.requests", 1000);
+        final List<Integer> threadCounts = new ArrayList<>();
+        for (String threads : System.getProperty("benchmark.threads", "1,8,32").split(",")) {
+            threadCounts.add(Integer.parseInt(threads.trim()));
+        }
+        final String filter = System.getProperty("benchmark.strategies", "");
+        final List<String> selected = filter.isEmpty() ? Collections.emptyList() : Arrays.asList(filter.split(","));
+
+        final List<CartItem> cart = Collections.singletonList(new CartItem("100", 1));
+        final Map<String, Callable<String>> strategies = new LinkedHashMap<>();
+        strategies.put("deductStock", redisController::deductStock);
+        strategies.put("deductStock2", redisController::deductStock2);
+        strategies.put("deductStock3", redisController::deductStock3);
+        strategies.put("deductStock4", redisController::deductStock4);
+        strategies.put("readLock", redisController::readLock);
+        strategies.put("writeLock", redisController::writeLock);
+        strategies.put("deductCartStock", () -> {
+            final CartDeductResult result = stockService.deductCart(cart);
+            if (result.getSuccess()) {
+                redisController.sold.increment();
+            }
+            return "end";
+        });
+
+        System.out.println(String.format("库存【%d】请求数【%d】", stock, requests));
+        System.out.println(Report.HEADER);
+        final List<Report> reports = new ArrayList<>();
+        for (Map.Entry<String, Callable<String>> strategy : strategies.entrySet()) {
+            if (!selected.isEmpty() && !selected.contains(strategy.getKey())) {
+                continue;
+            }
+            for (Integer threads : threadCounts) {
+                final Report report = run(strategy.getKey(), strategy.getValue(), threads, requests, stock);
+                System.out.println(report);
+                reports.add(report);
+            }
+        }
+        for (Report report : reports) {
+            if (SAFE_STRATEGIES.contains(report.strategy)) {
+                assertEquals(report.strategy + "出现超卖", 0, report.oversell());
+                assertEquals(report.strategy + "出现少卖", 0, report.undersell());
+            }
+        }
+    }
+
+    private Report run(String name, Callable<String> strategy, int threads, int requests, int stock) throws Exception {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+        stringRedisTemplate.opsForValue().set(PRODUCT_STOCK_KEY, String.valueOf(stock));
+        redisController.sold.reset();
+
+        final Report report = new Report(name, threads, requests, stock);
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    RequestTrace.begin(name);
+                    final long start = System.nanoTime();
+                    try {
+                        if (!"end".equals(strategy.call())) {
+                            report.rejected.increment();
+                        }
+                    } catch (Exception e) {
+                        report.errors.increment();
+                    }
+                    report.latencyNanos[i] = System.nanoTime() - start;
+                    final Long lockWait = RequestTrace.end().getStageMicros().get("lockWait");
+                    report.lockWaitMicros[i] = null == lockWait ? -1 : lockWait;
+                }
+            });
+        }
+        final long start = System.nanoTime();
+        startLatch.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        report.elapsedNanos = System.nanoTime() - start;
+        report.sold = redisController.sold.sum();
+        final String finalStock = stringRedisTemplate.opsForValue().get(PRODUCT_STOCK_KEY);
+        report.finalStock = null == finalStock ? null : Long.valueOf(finalStock);
+        return report;
+    }
+
+    private static void inject(Object target, String fieldName, Object value) {
+        final Field field = ReflectionUtils.findField(target.getClass(), fieldName);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+
+    /**
+     * 统计每种方式认为扣减成功的次数
+     */
+    private static class CountingRedisController extends RedisController {
+        private final LongAdder sold = new LongAdder();
+
+        @Override
+        boolean deductOneStock() {
+            final boolean deducted = super.deductOneStock();
+            if (deducted) {
+                sold.increment();
+            }
+            return deducted;
+        }
+    }
+
+    private static class Report {
+        private static final String HEADER = String.format("%-16s %7s %10s %10s %9s %9s %9s %9s %11s %11s %6s %8s %6s %9s %9s %11s",
+                "strategy", "threads", "deduct/s", "req/s", "p50(us)", "p99(us)", "max(us)", "lockP50", "lockP99", "lockMax",
+                "sold", "rejected", "errors", "oversell", "undersell", "lostUpdate");
+
+        private final String strategy;
+        private final int threads;
+        private final int requests;
+        private final int stock;
+        private final long[] latencyNanos;
+        private final long[] lockWaitMicros;
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private long elapsedNanos;
+        private long sold;
+        //库存key被删除时为null
+        private Long finalStock;
+
+        private Report(String strategy, int threads, int requests, int stock) {
+            this.strategy = strategy;
+            this.threads = threads;
+            this.requests = requests;
+            this.stock = stock;
+            this.latencyNanos = new long[requests];
+            this.lockWaitMicros = new long[requests];
+        }
+
+        //认为扣减成功的次数超过初始库存
+        private long oversell() {
+            return Math.max(0, sold - stock);
+        }
+
+        //有请求但库存没有卖完
+        private long undersell() {
+            return Math.max(0, Math.min(requests, stock) - sold);
+        }
+
+        //认为扣减成功的次数与库存实际减少数量的差（并发覆盖写导致），库存key被删除时无法计算
+        private String lostUpdates() {
+            return null == finalStock ? "keyDeleted" : String.valueOf(sold - (stock - finalStock));
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return -1;
+            }
+            return sorted[Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1))];
+        }
+
+        @Override
+        public String toString() {
+            final long[] latencies = latencyNanos.clone();
+            Arrays.sort(latencies);
+            final long[] lockWaits = Arrays.stream(lockWaitMicros).filter(wait -> wait >= 0).sorted().toArray();
+            final double seconds = elapsedNanos / 1e9;
+            return String.format("%-16s %7d %10.1f %10.1f %9d %9d %9d %9d %11d %11d %6d %8d %6d %9d %9d %11s",
+                    strategy, threads, sold / seconds, requests / seconds,
+                    percentile(latencies, 0.5) / 1000, percentile(latencies, 0.99) / 1000, percentile(latencies, 1) / 1000,
+                    percentile(lockWaits, 0.5), percentile(lockWaits, 0.99), percentile(lockWaits, 1),
+                    sold, rejected.sum(), errors.sum(), oversell(), undersell(), lostUpdates());
+        }
+    }
+}
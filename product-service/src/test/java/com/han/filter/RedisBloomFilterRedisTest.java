@@ -0,0 +1,142 @@
+package com.han.filter;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ReflectionUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在嵌入式redis中重建分块布隆过滤器
+ */
+public class RedisBloomFilterRedisTest {
+    private static final int PORT = 16382;
+    private static final String FILTER_KEY = "test:bloom";
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static RedisTemplate redisTemplate;
+    private static StringRedisTemplate stringRedisTemplate;
+    private static RedisBloomFilter bloomFilter;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        redisServer = RedisServer.newRedisServer().port(PORT).setting("maxmemory 128M").build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", PORT));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new RedisTemplate();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        if (null != connectionFactory) {
+            connectionFactory.destroy();
+        }
+        if (null != redisServer) {
+            redisServer.stop();
+        }
+    }
+
+    @Before
+    public void flush() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+        //每个测试使用新的实例，不使用上一个测试缓存的版本号
+        bloomFilter = new RedisBloomFilter();
+        final Field field = ReflectionUtils.findField(RedisBloomFilter.class, "redisTemplate");
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, bloomFilter, redisTemplate);
+    }
+
+    @Test
+    public void failsOpenUntilRebuiltAndDropsLegacyKeys() {
+        //升级前的单个bitmap和不带版本号的分块
+        stringRedisTemplate.opsForValue().setBit(FILTER_KEY, 7, true);
+        stringRedisTemplate.opsForValue().setBit(FILTER_KEY + ":3", 7, true);
+        stringRedisTemplate.opsForValue().set(FILTER_KEY + ":ready", "1");
+        assertFalse(bloomFilter.isReady(FILTER_KEY));
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "1"));
+        assertEquals(0, bloomFilter.fillRate(FILTER_KEY), 0);
+
+        assertTrue(bloomFilter.rebuild(FILTER_KEY, Arrays.asList("1", "2")));
+        assertTrue(bloomFilter.isReady(FILTER_KEY));
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "1"));
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "2"));
+        assertFalse(bloomFilter.mightContain(FILTER_KEY, "3"));
+        assertFalse(stringRedisTemplate.hasKey(FILTER_KEY));
+        assertFalse(stringRedisTemplate.hasKey(FILTER_KEY + ":3"));
+        assertFalse(stringRedisTemplate.hasKey(FILTER_KEY + ":ready"));
+        //重建使用的锁和重建中的版本号已删除
+        assertFalse(stringRedisTemplate.hasKey(FILTER_KEY + ":rebuilding"));
+        assertFalse(stringRedisTemplate.hasKey(FILTER_KEY + ":building"));
+    }
+
+    @Test
+    public void rebuildStartsFromEmptyBlocks() {
+        assertTrue(bloomFilter.rebuild(FILTER_KEY, Arrays.asList("1", "2", "3")));
+        final double fillRate = bloomFilter.fillRate(FILTER_KEY);
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "1"));
+
+        //数据源中已经删除的元素在重建后不再命中
+        assertTrue(bloomFilter.rebuild(FILTER_KEY, Arrays.asList("2", "3")));
+        assertFalse(bloomFilter.mightContain(FILTER_KEY, "1"));
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "2"));
+        assertTrue(bloomFilter.fillRate(FILTER_KEY) < fillRate);
+
+        //旧版本的分块设置了过期时间，延迟删除
+        assertEquals("2", stringRedisTemplate.opsForValue().get(FILTER_KEY + ":generation"));
+        for (String key : stringRedisTemplate.keys(FILTER_KEY + ":1:*")) {
+            assertTrue(key, stringRedisTemplate.getExpire(key) > 0);
+        }
+        for (String key : stringRedisTemplate.keys(FILTER_KEY + ":2:*")) {
+            assertEquals(key, Long.valueOf(-1), stringRedisTemplate.getExpire(key));
+        }
+    }
+
+    @Test
+    public void addDuringRebuildIsWrittenToBothGenerations() {
+        assertTrue(bloomFilter.rebuild(FILTER_KEY, Collections.singletonList("1")));
+        //模拟其他实例正在重建版本5
+        stringRedisTemplate.opsForValue().set(FILTER_KEY + ":building", "5");
+        assertTrue(bloomFilter.add(FILTER_KEY, "2"));
+        assertTrue(bloomFilter.mightContain(FILTER_KEY, "2"));
+        stringRedisTemplate.opsForValue().set(FILTER_KEY + ":generation", "5");
+        final RedisBloomFilter otherInstance = new RedisBloomFilter();
+        final Field field = ReflectionUtils.findField(RedisBloomFilter.class, "redisTemplate");
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, otherInstance, redisTemplate);
+        assertTrue(otherInstance.mightContain(FILTER_KEY, "2"));
+        assertFalse(otherInstance.mightContain(FILTER_KEY, "1"));
+    }
+
+    @Test
+    public void rebuildIsSkippedWhileAnotherInstanceRebuilds() {
+        stringRedisTemplate.opsForValue().set(FILTER_KEY + ":rebuilding", "1");
+        assertFalse(bloomFilter.rebuild(FILTER_KEY, Arrays.asList("1", "2")));
+        assertFalse(bloomFilter.isReady(FILTER_KEY));
+        assertNull(stringRedisTemplate.opsForValue().get(FILTER_KEY + ":sequence"));
+        assertTrue(stringRedisTemplate.hasKey(FILTER_KEY + ":rebuilding"));
+    }
+}
@@ -0,0 +1,174 @@
+package com.han.filter;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ReflectionUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在嵌入式redis中执行布谷鸟过滤器的lua脚本（嵌入式redis为6.2，脚本中的BITFIELD需要redis 3.2及以上）
+ */
+public class RedisCuckooFilterRedisTest {
+    private static final int PORT = 16380;
+    private static final String FILTER_KEY = "test:cuckoo";
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate stringRedisTemplate;
+    private static RedisCuckooFilter cuckooFilter;
+    //指纹和两个桶都相同的两个元素
+    private static String[] collision;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        redisServer = RedisServer.newRedisServer().port(PORT).setting("maxmemory 128M").build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", PORT));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        collision = findCollision();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        if (null != connectionFactory) {
+            connectionFactory.destroy();
+        }
+        if (null != redisServer) {
+            redisServer.stop();
+        }
+    }
+
+    @Before
+    public void flush() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+        //每个测试使用新的实例，不使用上一个测试缓存的初始化状态
+        cuckooFilter = new RedisCuckooFilter();
+        final Field field = ReflectionUtils.findField(RedisCuckooFilter.class, "stringRedisTemplate");
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, cuckooFilter, stringRedisTemplate);
+    }
+
+    @Test
+    public void failsOpenUntilRebuilt() {
+        assertFalse(cuckooFilter.isReady(FILTER_KEY));
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, "1"));
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList("1", "2")));
+        assertTrue(cuckooFilter.isReady(FILTER_KEY));
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, "1"));
+        assertFalse(cuckooFilter.mightContain(FILTER_KEY, "3"));
+    }
+
+    @Test
+    public void rebuildIsSkippedWhileAnotherInstanceRebuilds() {
+        stringRedisTemplate.opsForValue().set("{" + FILTER_KEY + "}:rebuilding", "1");
+        assertEquals(-1, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList("1", "2")));
+        assertFalse(cuckooFilter.isReady(FILTER_KEY));
+        //其他实例的锁不会被删除
+        assertTrue(stringRedisTemplate.hasKey("{" + FILTER_KEY + "}:rebuilding"));
+    }
+
+    @Test
+    public void removingOneCollidingValueKeepsTheOther() {
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Collections.emptyList()));
+        assertTrue(cuckooFilter.add(FILTER_KEY, collision[0]));
+        assertTrue(cuckooFilter.add(FILTER_KEY, collision[1]));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, collision[0]));
+        //指纹相同的另一个元素仍然存在
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, collision[1]));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, collision[1]));
+        assertFalse(cuckooFilter.mightContain(FILTER_KEY, collision[1]));
+        assertEquals(0, cuckooFilter.fillRate(FILTER_KEY), 0);
+    }
+
+    @Test
+    public void rebuildIsIdempotent() {
+        final int added = 1000;
+        final String[] values = new String[added];
+        for (int i = 0; i < added; i++) {
+            values[i] = String.valueOf(i);
+        }
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList(values)));
+        final double fillRate = cuckooFilter.fillRate(FILTER_KEY);
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList(values)));
+        //重复重建不会产生重复的指纹
+        assertEquals(fillRate, cuckooFilter.fillRate(FILTER_KEY), 0);
+        for (String value : values) {
+            assertTrue(cuckooFilter.mightContain(FILTER_KEY, value));
+        }
+        //重建后删除一个元素只删除一份
+        assertTrue(cuckooFilter.remove(FILTER_KEY, values[0]));
+        assertFalse(cuckooFilter.mightContain(FILTER_KEY, values[0]));
+        //重建使用的临时key和锁已经替换或删除，只剩过滤器、计数、已初始化标记和已删除集合
+        assertEquals(4L, (long) stringRedisTemplate.execute((RedisCallback<Long>) RedisConnection::dbSize));
+    }
+
+    @Test
+    public void removingTwiceKeepsTheCollidingValue() {
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList(collision)));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, collision[0]));
+        //重试的删除请求不会删除另一个元素的指纹
+        assertFalse(cuckooFilter.remove(FILTER_KEY, collision[0]));
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, collision[1]));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, collision[1]));
+        assertFalse(cuckooFilter.mightContain(FILTER_KEY, collision[1]));
+    }
+
+    @Test
+    public void rebuildSkipsRemovedValues() {
+        final List<String> values = Arrays.asList("1", "2", "3");
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, values));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, "1"));
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, values));
+        assertFalse(cuckooFilter.mightContain(FILTER_KEY, "1"));
+        assertFalse(cuckooFilter.remove(FILTER_KEY, "1"));
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, "2"));
+        //重新添加后可以再次删除
+        assertTrue(cuckooFilter.add(FILTER_KEY, "1"));
+        assertTrue(cuckooFilter.mightContain(FILTER_KEY, "1"));
+        assertTrue(cuckooFilter.remove(FILTER_KEY, "1"));
+        //数据源中已经没有的元素移出已删除集合
+        assertEquals(0, cuckooFilter.rebuild(FILTER_KEY, Arrays.asList("2", "3")));
+        assertFalse(stringRedisTemplate.hasKey("{" + FILTER_KEY + "}:removed"));
+    }
+
+    /**
+     * 查找指纹和第一个桶都相同（因此第二个桶也相同）的两个元素
+     */
+    private static String[] findCollision() {
+        final Map<Long, String> seen = new HashMap<>();
+        for (int i = 0; ; i++) {
+            final String value = "collision-" + i;
+            final int[] location = RedisCuckooFilter.locate(value);
+            final String previous = seen.putIfAbsent(((long) location[0] << 32) | location[1], value);
+            if (null != previous) {
+                assertEquals(RedisCuckooFilter.locate(previous)[2], location[2]);
+                assertNotEquals(previous, value);
+                return new String[]{previous, value};
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.han.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RedisCuckooFilterTest {
+
+    @Test
+    public void numOfBucketsIsPowerOfTwo() {
+        assertEquals(1, RedisCuckooFilter.optimalNumOfBuckets(1));
+        assertEquals(1, RedisCuckooFilter.optimalNumOfBuckets(3));
+        assertEquals(2, RedisCuckooFilter.optimalNumOfBuckets(4));
+        assertEquals(524288, RedisCuckooFilter.optimalNumOfBuckets(1000000));
+    }
+
+    @Test
+    public void altIndexIsReversible() {
+        for (int i = 0; i < 10000; i++) {
+            final int[] location = RedisCuckooFilter.locate(String.valueOf(i));
+            assertNotEquals(0, location[0]);
+            assertTrue(location[0] < (1 << 16));
+            assertEquals(location[2], RedisCuckooFilter.altIndex(location[1], location[0]));
+            assertEquals(location[1], RedisCuckooFilter.altIndex(location[2], location[0]));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.han.limit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ReflectionUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StockRequestLimiterTest {
+    private static final int PORT = 16383;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    //每次预取返回的令牌数，为空时返回0
+    private final Queue<Integer> grants = new LinkedList<>();
+    private int fetches;
+    private StockRequestLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new StockRequestLimiter() {
+            @Override
+            int fetchPermits() {
+                fetches++;
+                final Integer granted = grants.poll();
+                return null == granted ? 0 : granted;
+            }
+        };
+        configure(limiter);
+    }
+
+    @Test
+    public void localPermitsAreUsedBeforeFetchingAgain() {
+        grants.add(10);
+        grants.add(10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertEquals(1, fetches);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, fetches);
+    }
+
+    @Test
+    public void unusedPermitsExpire() {
+        grants.add(10);
+        grants.add(10);
+        assertTrue(limiter.tryAcquire());
+        now.addAndGet(499);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(1, fetches);
+        //过期后剩余的8个令牌作废，重新从redis预取
+        now.addAndGet(1);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, fetches);
+    }
+
+    @Test
+    public void emptyBucketBacksOffForOneTokenInterval() {
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, fetches);
+        //rate为200时生成一个令牌需要5ms，期间直接拒绝，不访问redis
+        now.addAndGet(4);
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, fetches);
+        grants.add(1);
+        now.addAndGet(1);
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, fetches);
+        //只获得1个令牌，本地没有剩余
+        assertFalse(limiter.tryAcquire());
+        assertEquals(3, fetches);
+    }
+
+    @Test
+    public void soldOutExpires() {
+        limiter.markSoldOut();
+        assertTrue(limiter.isSoldOut());
+        now.addAndGet(1000);
+        assertFalse(limiter.isSoldOut());
+    }
+
+    @Test
+    public void bucketUsesRedisTimeInsteadOfInstanceClock() throws IOException {
+        final RedisServer redisServer = RedisServer.newRedisServer().port(PORT).setting("maxmemory 128M").build();
+        redisServer.start();
+        final LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", PORT));
+        try {
+            connectionFactory.afterPropertiesSet();
+            final StringRedisTemplate stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+            final StockRequestLimiter redisLimiter = new StockRequestLimiter();
+            configure(redisLimiter);
+            //每秒1个令牌，桶容量为1
+            inject(redisLimiter, "rate", 1);
+            inject(redisLimiter, "stringRedisTemplate", stringRedisTemplate);
+            //实例的时钟比redis快一小时，不会因此补充令牌
+            now.set(System.currentTimeMillis() + 3600000);
+            assertEquals(1, redisLimiter.fetchPermits());
+            assertEquals(0, redisLimiter.fetchPermits());
+            final long bucketTime = Long.parseLong((String) stringRedisTemplate.opsForHash().get("product:stock:limiter:100", "ts"));
+            assertTrue(Math.abs(bucketTime - System.currentTimeMillis()) < 60000);
+        } finally {
+            connectionFactory.destroy();
+            redisServer.stop();
+        }
+    }
+
+    private void configure(StockRequestLimiter target) {
+        inject(target, "rate", 200);
+        inject(target, "prefetch", 10);
+        inject(target, "permitTtlMillis", 500L);
+        inject(target, "soldOutMillis", 1000L);
+        target.clock = now::get;
+        target.validate();
+    }
+
+    private static void inject(StockRequestLimiter target, String fieldName, Object value) {
+        final Field field = ReflectionUtils.findField(StockRequestLimiter.class, fieldName);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
@@ -0,0 +1,252 @@
+package com.han.service.impl;
+
+import com.han.dto.CartDeductResult;
+import com.han.dto.CartItem;
+import com.han.dto.StockReservationResult;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.util.ReflectionUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在嵌入式redis中执行预占库存的lua脚本
+ */
+public class IStockServiceImplRedisTest {
+    private static final int PORT = 16381;
+    private static final long TTL_MILLIS = 60000;
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate stringRedisTemplate;
+    private static IStockServiceImpl stockService;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        redisServer = RedisServer.newRedisServer().port(PORT).setting("maxmemory 128M").build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", PORT));
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        stockService = new IStockServiceImpl();
+        inject("stringRedisTemplate", stringRedisTemplate);
+        stockService.startBatchDeduct();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        if (null != stockService) {
+            stockService.stopBatchDeduct();
+        }
+        if (null != connectionFactory) {
+            connectionFactory.destroy();
+        }
+        if (null != redisServer) {
+            redisServer.stop();
+        }
+    }
+
+    @Before
+    public void flush() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+        inject("reservationTtlMillis", TTL_MILLIS);
+        inject("sweepBatch", 100);
+        setStock("100", 10);
+        setStock("200", 5);
+    }
+
+    @Test
+    public void reserveThenConfirm() {
+        final StockReservationResult result = stockService.reserve(cart(3, 2));
+        assertTrue(result.getSuccess());
+        assertNotNull(result.getReservationId());
+        assertEquals(7, getStock("100"));
+        assertEquals(3, getStock("200"));
+
+        assertTrue(stockService.confirmReservation(result.getReservationId()));
+        //确认后库存不再归还
+        assertEquals(7, getStock("100"));
+        assertEquals(3, getStock("200"));
+        assertFalse(stockService.confirmReservation(result.getReservationId()));
+        assertFalse(stockService.cancelReservation(result.getReservationId()));
+        assertEquals(7, getStock("100"));
+        //预占记录和明细已删除，只剩两个库存key
+        assertEquals(2, stringRedisTemplate.keys("*").size());
+    }
+
+    @Test
+    public void reserveThenCancel() {
+        final StockReservationResult result = stockService.reserve(cart(3, 2));
+        assertTrue(result.getSuccess());
+
+        assertTrue(stockService.cancelReservation(result.getReservationId()));
+        assertEquals(10, getStock("100"));
+        assertEquals(5, getStock("200"));
+        //重复取消不会重复归还
+        assertFalse(stockService.cancelReservation(result.getReservationId()));
+        assertFalse(stockService.confirmReservation(result.getReservationId()));
+        assertEquals(10, getStock("100"));
+        assertEquals(5, getStock("200"));
+    }
+
+    @Test
+    public void reserveFailsWithoutDeductingAnything() {
+        final StockReservationResult result = stockService.reserve(cart(3, 6));
+        assertFalse(result.getSuccess());
+        assertNull(result.getReservationId());
+        assertTrue(result.getItems().get(0).getSuccess());
+        assertFalse(result.getItems().get(1).getSuccess());
+        assertEquals(10, getStock("100"));
+        assertEquals(5, getStock("200"));
+        assertEquals(2, stringRedisTemplate.keys("*").size());
+    }
+
+    @Test
+    public void confirmAfterExpiryFails() {
+        inject("reservationTtlMillis", -1L);
+        final StockReservationResult result = stockService.reserve(cart(3, 2));
+        assertTrue(result.getSuccess());
+
+        assertFalse(stockService.confirmReservation(result.getReservationId()));
+        //过期未确认的预占由定时任务归还
+        assertEquals(1, stockService.sweepExpiredReservations());
+        assertEquals(10, getStock("100"));
+        assertEquals(5, getStock("200"));
+    }
+
+    @Test
+    public void sweeperReleasesExpiredReservationsInBatches() {
+        inject("sweepBatch", 2);
+        inject("reservationTtlMillis", -1L);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(stockService.reserve(cart(1, 1)).getSuccess());
+        }
+        inject("reservationTtlMillis", TTL_MILLIS);
+        final StockReservationResult live = stockService.reserve(cart(1, 0));
+        assertTrue(live.getSuccess());
+        assertEquals(4, getStock("100"));
+        assertEquals(0, getStock("200"));
+
+        //每批最多2个，一次执行取完3批
+        assertEquals(5, stockService.sweepExpiredReservations());
+        assertEquals(9, getStock("100"));
+        assertEquals(5, getStock("200"));
+        assertEquals(Collections.singleton(live.getReservationId()),
+                stringRedisTemplate.opsForZSet().range(IStockServiceImpl.RESERVATION_KEY, 0, -1));
+        assertEquals(0, stockService.sweepExpiredReservations());
+        assertTrue(stockService.confirmReservation(live.getReservationId()));
+    }
+
+    @Test
+    public void reservationKeysShareOneClusterSlot() {
+        assertTrue(stockService.reserve(cart(3, 2)).getSuccess());
+        final Set<String> keys = stringRedisTemplate.keys("*");
+        assertEquals(4, keys.size());
+        final int slot = SlotHash.getSlot(IStockServiceImpl.RESERVATION_KEY);
+        for (String key : keys) {
+            assertEquals(key, slot, SlotHash.getSlot(key));
+        }
+    }
+
+    @Test
+    public void cartDeductIsAllOrNothing() {
+        final CartDeductResult failed = stockService.deductCart(cart(3, 6));
+        assertFalse(failed.getSuccess());
+        assertTrue(failed.getItems().get(0).getSuccess());
+        assertFalse(failed.getItems().get(1).getSuccess());
+        assertEquals(Long.valueOf(5), failed.getItems().get(1).getStock());
+        //库存不足的商品之前的商品也没有扣减
+        assertEquals(10, getStock("100"));
+        assertEquals(5, getStock("200"));
+
+        assertTrue(stockService.deductCart(cart(3, 5)).getSuccess());
+        assertEquals(7, getStock("100"));
+        assertEquals(0, getStock("200"));
+    }
+
+    @Test
+    public void cartDeductReloadsFlushedScriptOnce() {
+        assertTrue(stockService.deductCart(cart(1, 1)).getSuccess());
+        //脚本被清除后EVALSHA返回NOSCRIPT，加载脚本后重新执行，只扣减一次
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.scriptFlush();
+            return null;
+        });
+        assertTrue(stockService.deductCart(cart(2, 1)).getSuccess());
+        assertEquals(7, getStock("100"));
+        assertEquals(3, getStock("200"));
+    }
+
+    @Test
+    public void nonNumericSkuIdIsRejected() {
+        stringRedisTemplate.opsForValue().set(IStockServiceImpl.PRODUCT_STOCK_KEY + "lock:100", "10");
+        for (String skuId : Arrays.asList("lock:100", "reservations", "reservation:1", "-1", " 100")) {
+            try {
+                stockService.deductCart(Collections.singletonList(new CartItem(skuId, 1)));
+                fail(skuId);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(skuId));
+            }
+            try {
+                stockService.reserve(Collections.singletonList(new CartItem(skuId, 1)));
+                fail(skuId);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(skuId));
+            }
+        }
+        assertEquals(10, getStock("lock:100"));
+        assertEquals(3, stringRedisTemplate.keys("*").size());
+    }
+
+    /**
+     * 商品100和200的数量，数量为0的商品不放入购物车
+     */
+    private static List<CartItem> cart(int quantity100, int quantity200) {
+        final List<CartItem> items = new ArrayList<>();
+        if (quantity100 > 0) {
+            items.add(new CartItem("100", quantity100));
+        }
+        if (quantity200 > 0) {
+            items.add(new CartItem("200", quantity200));
+        }
+        return items;
+    }
+
+    private static void setStock(String skuId, int stock) {
+        stringRedisTemplate.opsForValue().set(IStockServiceImpl.PRODUCT_STOCK_KEY + skuId, String.valueOf(stock));
+    }
+
+    private static long getStock(String skuId) {
+        return Long.parseLong(stringRedisTemplate.opsForValue().get(IStockServiceImpl.PRODUCT_STOCK_KEY + skuId));
+    }
+
+    private static void inject(String fieldName, Object value) {
+        final Field field = ReflectionUtils.findField(IStockServiceImpl.class, fieldName);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, stockService, value);
+    }
+}
@@ -0,0 +1,57 @@
+package com.han.snapshot;
+
+import com.han.common.snapshot.UserSnapshot;
+import com.han.common.snapshot.UserSnapshotWriter;
+import com.han.entity.User;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class UserSnapshotManagerTest {
+
+    @Test
+    public void nullFieldsRoundTripThroughSnapshot() throws IOException {
+        final Path dir = Files.createTempDirectory("user-snapshot");
+        final Path snapshotFile = dir.resolve("user.snapshot");
+        try {
+            try (UserSnapshotWriter writer = new UserSnapshotWriter(snapshotFile)) {
+                writer.append(1, UserSnapshotManager.encode(new User(1, "han", "secret")));
+                writer.append(2, UserSnapshotManager.encode(new User(2, null, "secret")));
+                writer.append(3, UserSnapshotManager.encode(new User(3, "", null)));
+                writer.append(4, UserSnapshotManager.encode(new User(4, null, null)));
+                writer.commit();
+            }
+            final UserSnapshot snapshot = UserSnapshot.open(snapshotFile);
+            //密码不写入快照
+            assertUser(snapshot, 1, "han");
+            assertUser(snapshot, 2, null);
+            //空字符串与null区分
+            assertUser(snapshot, 3, "");
+            assertUser(snapshot, 4, null);
+            assertNull(snapshot.get(5));
+            assertFalse(new String(Files.readAllBytes(snapshotFile), StandardCharsets.ISO_8859_1).contains("secret"));
+            if (null != Files.getFileAttributeView(snapshotFile, PosixFileAttributeView.class)) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(snapshotFile)));
+            }
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void assertUser(UserSnapshot snapshot, int userId, String userName) throws IOException {
+        final User user = UserSnapshotManager.decode(userId, snapshot.get(userId));
+        assertEquals(Integer.valueOf(userId), user.getUserId());
+        assertEquals(userName, user.getUserName());
+        assertNull(user.getPassword());
+    }
+}